@@ -0,0 +1,80 @@
+package com.mcirony.strideminder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-process stand-in for the sync backend, for measuring and exercising GaitSyncUploader.
+ * It decodes every batch it's sent, so corrupt batches fail loudly, and counts requests, bytes and rows.
+ * It can also be told to reject the next few requests, to exercise retries.
+ */
+public class FakeSyncServer implements SyncTransport {
+    private long requests;
+    private long failedRequests;
+    private long bytesReceived;
+    private long rowsReceived;
+    private int failuresToInject;
+    private final Map<String, Long> rowsByTable = new HashMap<String, Long>();
+    private final GaitParamsPage page = new GaitParamsPage(GaitExportWriter.BLOCK_ROWS, 0);
+
+    @Override
+    public synchronized void send(String deviceId, byte[] batch, int length) throws IOException {
+        requests++;
+        if(failuresToInject > 0) {
+            failuresToInject--;
+            failedRequests++;
+            throw new IOException("Injected failure");
+        }
+
+        GaitExportReader reader = new GaitExportReader(new ByteArrayInputStream(batch, 0, length));
+        String table;
+        while((table = reader.nextTable()) != null) {
+            long rows = 0;
+            while(reader.readPage(page)) {
+                rows += page.size;
+            }
+            Long previous = rowsByTable.get(table);
+            rowsByTable.put(table, (previous == null ? 0 : previous) + rows);
+            rowsReceived += rows;
+        }
+        bytesReceived += length;
+    }
+
+    /**
+     * Makes the next few requests fail with an IOException.
+     * @param count Number of requests to reject
+     */
+    public synchronized void failNext(int count) {
+        failuresToInject = count;
+    }
+
+    /**
+     * @return Every request made, including rejected ones. Each one is a radio wakeup on a real device.
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getFailedRequests() {
+        return failedRequests;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized long getRowsReceived() {
+        return rowsReceived;
+    }
+
+    /**
+     * @param table Table name
+     * @return Number of rows received for the table.
+     */
+    public synchronized long getRowsReceived(String table) {
+        Long rows = rowsByTable.get(table);
+        return rows == null ? 0 : rows;
+    }
+}
@@ -0,0 +1,319 @@
+package com.mcirony.strideminder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Drives the whole collection pipeline with synthetic accelerometry, faster than real time, and measures it.
+ *
+ * Events from a SyntheticGaitGenerator go through the same AccelBlockBuffer the collector service uses,
+ * every completed block goes through MoeNilssenAccelProcessor.processBuffers(), and walking blocks are
+ * written with insertWalkingBlock() (so hourly, daily and monthly rollups happen as normal). Blocks are
+ * processed on the calling thread rather than a new one, so each block's latency and CPU time can be
+ * measured on its own.
+ *
+ * The simulated wearer follows a repeatable daily routine: still overnight, and during the day a mix
+ * of sitting, walking, the odd run, and some limping, changing every ten minutes.
+ *
+ * By default the harness samples continuously, like AccelDataCollectorService. Given a DutyCyclePolicy
+ * it samples in bursts instead, like BurstSamplingService: after each burst, simulated time skips ahead
+ * by the policy's interval with the sensor off. The daily routine is the same either way, so the two
+ * modes' reports can be compared directly.
+ *
+ * The report ends with the step count and the time the step event and walking bout queries take over the last simulated day.
+ *
+ * At the end of every simulated day the new rows are synced to a FakeSyncServer with GaitSyncUploader,
+ * to measure the bytes and radio wakeups a day of data costs.
+ *
+ * Results are written to a separate database (DATABASE_NAME), which is wiped at the start of each run,
+ * as are the sync watermarks (PREFS_NAME).
+ */
+public class SoakHarness {
+    public static final String DATABASE_NAME = "soak";
+    public static final String PREFS_NAME = "soak_sync";
+    static final long START_TIME_MILLISEC = 1380585600000L;    // 2013-10-01 00:00 UTC
+    static final long ONE_DAY_MILLISEC = 86400000L;
+    static final long ACTIVITY_PERIOD_MILLISEC = 600000L;      // How often the simulated wearer changes activity
+
+    // Same block layout as AccelDataCollectorService
+    static final long BLOCK_DURATION_NANOSEC = 10000000000L;
+    static final int BUFFER_SIZE = 1500;
+
+    private final Context context;
+    private final long seed;
+    private final double rateHz;
+    private final double noise;
+    private DutyCyclePolicy dutyCycle;
+    private boolean floatPrecision;
+    private boolean cadenceOnly;
+    private int crossCheckEvery;
+
+    /**
+     * @param context Context to open the harness database with
+     * @param seed Seed for the synthetic signal and the daily routine
+     * @param rateHz Simulated sensor event rate
+     * @param noise Standard deviation of simulated sensor noise (m/s^2)
+     */
+    public SoakHarness(Context context, long seed, double rateHz, double noise) {
+        this.context = context;
+        this.seed = seed;
+        this.rateHz = rateHz;
+        this.noise = noise;
+    }
+
+    /**
+     * Switches between continuous and burst sampling for later runs.
+     * @param dutyCycle Policy to schedule bursts with, or null to sample continuously
+     */
+    public void setDutyCycle(DutyCyclePolicy dutyCycle) {
+        this.dutyCycle = dutyCycle;
+    }
+
+    /**
+     * Switches between the double and single precision signal paths for later runs.
+     * @param floatPrecision True to capture and analyse blocks in single precision
+     */
+    public void setFloatPrecision(boolean floatPrecision) {
+        this.floatPrecision = floatPrecision;
+    }
+
+    /**
+     * Switches between the full analysis and cadence-only estimation for later runs.
+     * See MoeNilssenAccelProcessor.setCadenceOnly().
+     * @param cadenceOnly True to estimate cadence alone
+     * @param crossCheckEvery Cross-check one block in this many against the full analysis, or 0 for none
+     */
+    public void setCadenceOnly(boolean cadenceOnly, int crossCheckEvery) {
+        this.cadenceOnly = cadenceOnly;
+        this.crossCheckEvery = crossCheckEvery;
+    }
+
+    /**
+     * Runs the given number of simulated days through the pipeline.
+     * A line of progress is logged at the end of every simulated day.
+     * @param days Number of days to simulate
+     * @return A human-readable report of latency percentiles, CPU time, heap growth and database size.
+     */
+    public String run(int days) {
+        context.deleteDatabase(DATABASE_NAME);
+        GaitParamsDbAdapter db = new GaitParamsDbAdapter(context, DATABASE_NAME);
+        MoeNilssenAccelProcessor mnap = new MoeNilssenAccelProcessor(context, db);
+        mnap.setCadenceOnly(cadenceOnly, crossCheckEvery);
+        AccelBlockBuffer buffer = new AccelBlockBuffer(BLOCK_DURATION_NANOSEC, BUFFER_SIZE, floatPrecision);
+        SyntheticGaitGenerator generator = new SyntheticGaitGenerator(seed, rateHz, 0.05, noise, 0.3, 0.1);
+        Random routine = new Random(seed);
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        FakeSyncServer server = new FakeSyncServer();
+        GaitSyncUploader uploader = new GaitSyncUploader(db, prefs, server);
+        long syncCpuNanosec = 0;
+
+        // Blocks end after BLOCK_DURATION_NANOSEC, or sooner if the buffer fills at high event rates.
+        long blocksPerDay = Math.max(ONE_DAY_MILLISEC * 1000000L / BLOCK_DURATION_NANOSEC,
+                (long) Math.ceil(rateHz * 86400 / BUFFER_SIZE));
+        long[] latencies = new long[(int) (blocksPerDay * days) + days];
+        long[] cpuTimes = new long[latencies.length];
+        int blocks = 0;
+
+        long heapBefore = usedHeap();
+        long wallStart = System.nanoTime();
+        float[] xyz = new float[3];
+        long nextActivityChange = 0;
+        int day = 0;
+        long dayCpuNanosec = 0;
+
+        // Burst sampling state. In continuous mode the whole run is one long burst.
+        int burstBlocks = 0;
+        boolean burstWalking = false;
+        long burstStartNanosec = -1;
+        long sensorOnNanosec = 0;
+        long lastTimestampNanosec = 0;
+        int bursts = 0;
+        int walkingBlocks = 0;
+
+        while(day < days) {
+            long timestampNanosec = generator.next(xyz);
+            long simulatedMillisec = timestampNanosec / 1000000L;
+            lastTimestampNanosec = timestampNanosec;
+            if(burstStartNanosec < 0) {
+                burstStartNanosec = timestampNanosec;
+                bursts++;
+            }
+
+            // Go through every change of activity, including any skipped between bursts, so the routine doesn't depend on the mode.
+            while(simulatedMillisec >= nextActivityChange) {
+                generator.setActivity(pickActivity(routine, simulatedMillisec % ONE_DAY_MILLISEC));
+                nextActivityChange += ACTIVITY_PERIOD_MILLISEC;
+            }
+
+            if(!buffer.isReady()) {
+                buffer.init(START_TIME_MILLISEC + simulatedMillisec, timestampNanosec);
+            }
+            AccelBlockBuffer.Block block = buffer.add(timestampNanosec, xyz[0], xyz[1], xyz[2]);
+
+            if(block != null) {
+                long cpuStart = Debug.threadCpuTimeNanos();
+                long start = System.nanoTime();
+                boolean walking = mnap.processBlock(block, true, false);
+                latencies[blocks] = System.nanoTime() - start;
+                cpuTimes[blocks] = Debug.threadCpuTimeNanos() - cpuStart;
+                dayCpuNanosec += cpuTimes[blocks];
+                blocks++;
+                if(walking) {
+                    walkingBlocks++;
+                }
+
+                if(dutyCycle != null) {
+                    burstWalking |= walking;
+                    if(++burstBlocks == dutyCycle.getBlocksPerBurst()) {
+                        // Burst over: the sensor goes off until the next alarm.
+                        sensorOnNanosec += timestampNanosec - burstStartNanosec;
+                        generator.setTimestamp(timestampNanosec + dutyCycle.next(burstWalking) * 1000000L);
+                        burstBlocks = 0;
+                        burstWalking = false;
+                        burstStartNanosec = -1;
+                    }
+                }
+            }
+
+            while(simulatedMillisec >= (day + 1) * ONE_DAY_MILLISEC && day < days) {
+                day++;
+                long cpuStart = Debug.threadCpuTimeNanos();
+                try {
+                    uploader.sync();
+                } catch(IOException e) {
+                    Log.w("StrideMinder", "Soak sync failed: " + e.getMessage());
+                }
+                syncCpuNanosec += Debug.threadCpuTimeNanos() - cpuStart;
+                Log.i("StrideMinder", "Soak day " + day + ": " + blocks + " blocks, "
+                        + (dayCpuNanosec / 1000000L) + " ms CPU, heap " + (usedHeap() / 1024) + " KiB, db "
+                        + (databaseSize() / 1024) + " KiB, synced " + server.getBytesReceived() + " bytes");
+                dayCpuNanosec = 0;
+            }
+        }
+
+        double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+        if(burstStartNanosec >= 0) {
+            sensorOnNanosec += lastTimestampNanosec - burstStartNanosec;
+        }
+        long heapAfter = usedHeap();
+
+        long[] sortedLatencies = Arrays.copyOf(latencies, blocks);
+        long[] sortedCpu = Arrays.copyOf(cpuTimes, blocks);
+        Arrays.sort(sortedLatencies);
+        Arrays.sort(sortedCpu);
+        long totalCpu = 0;
+        for(int i = 0; i < blocks; i++) {
+            totalCpu += cpuTimes[i];
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Simulated ").append(days).append(" days (").append(blocks).append(" blocks) in ")
+                .append(String.format("%.1f", wallSeconds)).append(" s, ")
+                .append(String.format("%.0f", days * 86400 / wallSeconds)).append("x real time\n");
+        sb.append("Sampling: ").append(dutyCycle == null ? "continuous" : "burst")
+                .append(floatPrecision ? " (float" : " (double").append(cadenceOnly ? ", cadence only)" : ")").append(", sensor and CPU on ")
+                .append(sensorOnNanosec / days / 60000000000L).append(" min and ")
+                .append(String.format("%.1f", (double) bursts / days)).append(" wakeups per simulated day, ")
+                .append(walkingBlocks).append(" walking blocks\n");
+        sb.append("Block latency ms: p50 ").append(millis(percentile(sortedLatencies, 0.5)))
+                .append(" p90 ").append(millis(percentile(sortedLatencies, 0.9)))
+                .append(" p99 ").append(millis(percentile(sortedLatencies, 0.99)))
+                .append(" max ").append(millis(percentile(sortedLatencies, 1.0))).append('\n');
+        sb.append("Block CPU ms: p50 ").append(millis(percentile(sortedCpu, 0.5)))
+                .append(" p99 ").append(millis(percentile(sortedCpu, 0.99)))
+                .append(", per simulated day ").append(totalCpu / days / 1000000L).append(" ms\n");
+        sb.append("Heap: ").append(heapBefore / 1024).append(" KiB before, ").append(heapAfter / 1024)
+                .append(" KiB after, growth ").append((heapAfter - heapBefore) / 1024).append(" KiB\n");
+        sb.append("Database: ").append(databaseSize() / 1024).append(" KiB, ")
+                .append(databaseSize() / days / 1024).append(" KiB per simulated day\n");
+        sb.append("Sync: ").append(server.getRowsReceived()).append(" rows, ")
+                .append(server.getBytesReceived() / days).append(" bytes and ")
+                .append(String.format("%.1f", (double) server.getRequests() / days)).append(" wakeups per simulated day, ")
+                .append(syncCpuNanosec / days / 1000000L).append(" ms CPU per simulated day\n");
+        if(cadenceOnly) {
+            sb.append(mnap.getCrossCheckReport()).append('\n');
+        }
+
+        // Step event queries over the last simulated day
+        long dayEnd = START_TIME_MILLISEC + days * ONE_DAY_MILLISEC;
+        db.open();
+        long queryStart = System.nanoTime();
+        long steps = db.getStepCount(START_TIME_MILLISEC, dayEnd);
+        long countNanosec = System.nanoTime() - queryStart;
+        queryStart = System.nanoTime();
+        Cursor minutes = db.getStepCountsPerMinute(dayEnd - ONE_DAY_MILLISEC, dayEnd);
+        int activeMinutes = minutes.getCount();
+        minutes.close();
+        long perMinuteNanosec = System.nanoTime() - queryStart;
+        queryStart = System.nanoTime();
+        long[] longestWalk = db.getLongestWalk(dayEnd - ONE_DAY_MILLISEC, dayEnd);
+        long longestWalkNanosec = System.nanoTime() - queryStart;
+
+        // Walking bout queries, over the last simulated day and over the whole run
+        queryStart = System.nanoTime();
+        long[] lastDay = db.getWalkingSummary(dayEnd - ONE_DAY_MILLISEC, dayEnd);
+        long lastDayNanosec = System.nanoTime() - queryStart;
+        queryStart = System.nanoTime();
+        double[] averages = db.getWalkingAverages(START_TIME_MILLISEC, dayEnd);
+        long averagesNanosec = System.nanoTime() - queryStart;
+        db.close();
+        sb.append("Steps: ").append(steps / days).append(" per simulated day (counted in ").append(millis(countNanosec))
+                .append(" ms), last day ").append(activeMinutes).append(" minutes with steps (").append(millis(perMinuteNanosec))
+                .append(" ms), longest walk ").append(longestWalk == null ? 0 : (longestWalk[1] - longestWalk[0]) / 1000)
+                .append(" s (").append(millis(longestWalkNanosec)).append(" ms)\n");
+        sb.append("Bouts: last day ").append(lastDay[0]).append(" bouts, ").append(lastDay[1] / 60000).append(" min walking, longest ")
+                .append(lastDay[2] / 1000).append(" s (").append(millis(lastDayNanosec)).append(" ms), all days cadence ")
+                .append(String.format("%.1f", averages[3])).append(" strides/min (").append(millis(averagesNanosec)).append(" ms)\n");
+        return sb.toString();
+    }
+
+    /**
+     * Chooses what the simulated wearer does next, given the time of day.
+     */
+    private static int pickActivity(Random routine, long timeOfDayMillisec) {
+        int hour = (int) (timeOfDayMillisec / 3600000L);
+        if(hour < 7 || hour >= 23) {
+            return SyntheticGaitGenerator.STATIONARY;
+        }
+        double r = routine.nextDouble();
+        if(r < 0.65) {
+            return SyntheticGaitGenerator.STATIONARY;
+        } else if(r < 0.88) {
+            return SyntheticGaitGenerator.WALKING;
+        } else if(r < 0.95) {
+            return SyntheticGaitGenerator.LIMPING;
+        } else {
+            return SyntheticGaitGenerator.RUNNING;
+        }
+    }
+
+    private long databaseSize() {
+        return context.getDatabasePath(DATABASE_NAME).length();
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    private static String millis(long nanosec) {
+        return String.format("%.2f", nanosec / 1e6);
+    }
+}
@@ -0,0 +1,54 @@
+package com.mcirony.strideminder;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Runs the SoakHarness in the background and logs its report.
+ * Start it from a development machine with, for example:
+ * adb shell am startservice -n com.mcirony.strideminder/.SoakHarnessService --ei days 7 --ei rate 100
+ * The mode extra chooses continuous sampling (the default), burst sampling with the settings in config.xml,
+ * or both one after the other for comparison: --es mode both
+ * Add --ez float true to run the single precision signal path, and --ez cadence true to estimate cadence alone
+ * (cross-checked as set in config.xml).
+ * The service is protected by the DUMP permission, which the adb shell holds and ordinary apps don't.
+ */
+public class SoakHarnessService extends IntentService {
+    public static final String EXTRA_DAYS = "days";
+    public static final String EXTRA_SEED = "seed";
+    public static final String EXTRA_RATE = "rate";
+    public static final String EXTRA_MODE = "mode";
+    public static final String EXTRA_FLOAT = "float";
+    public static final String EXTRA_CADENCE = "cadence";
+    public static final String MODE_CONTINUOUS = "continuous";
+    public static final String MODE_BURST = "burst";
+    public static final String MODE_BOTH = "both";
+
+    public SoakHarnessService() {
+        super("SoakHarnessService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        int days = intent.getIntExtra(EXTRA_DAYS, 1);
+        long seed = intent.getLongExtra(EXTRA_SEED, 1);
+        int rate = intent.getIntExtra(EXTRA_RATE, 100);
+        String mode = intent.getStringExtra(EXTRA_MODE);
+        if(mode == null) {
+            mode = MODE_CONTINUOUS;
+        }
+
+        Log.i("StrideMinder", "Soak harness starting: " + days + " days at " + rate + " Hz, seed " + seed + ", " + mode);
+        SoakHarness harness = new SoakHarness(getApplicationContext(), seed, rate, 0.1);
+        harness.setFloatPrecision(intent.getBooleanExtra(EXTRA_FLOAT, false));
+        harness.setCadenceOnly(intent.getBooleanExtra(EXTRA_CADENCE, false), getResources().getInteger(R.integer.cadence_cross_check_every));
+        if(!mode.equals(MODE_BURST)) {
+            Log.i("StrideMinder", "Soak harness finished (continuous)\n" + harness.run(days));
+        }
+        if(!mode.equals(MODE_CONTINUOUS)) {
+            harness.setDutyCycle(BurstSamplingService.newPolicy(getResources()));
+            Log.i("StrideMinder", "Soak harness finished (burst)\n" + harness.run(days));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.mcirony.strideminder;
+
+import java.util.Random;
+
+/**
+ * Produces a deterministic stream of realistic-looking accelerometer events for testing and benchmarking
+ * without anyone having to walk around with a phone.
+ *
+ * The signal is built in the wearer's frame (vertical, forwards, sideways) and then rotated into the
+ * device's frame by the configured pitch and roll, the way a phone sits at an angle in a pocket.
+ * Vertical acceleration is gravity plus a step-frequency oscillation with a second harmonic, and
+ * sideways sway follows the stride (half the step frequency). Cadence drifts slowly from step to step.
+ * Event intervals are jittered around the nominal rate, as real sensors report them.
+ * The same seed and settings always produce exactly the same events.
+ */
+public class SyntheticGaitGenerator {
+    public static final int STATIONARY = 0;
+    public static final int WALKING = 1;
+    public static final int LIMPING = 2;
+    public static final int RUNNING = 3;
+
+    static final double GRAVITY = 9.80665;
+
+    private final Random random;
+    private final long intervalNanosec;
+    private final double jitter;
+    private final double noise;
+
+    // Rotation from the wearer's frame into the device's frame
+    private final double sinPitch, cosPitch, sinRoll, cosRoll;
+
+    private int activity = STATIONARY;
+    private double stepHz;          // Current step frequency
+    private double targetStepHz;    // Frequency the drift is centred on for this activity
+    private double amplitude;       // Peak vertical acceleration from stepping (m/s^2)
+    private double asymmetry;       // Fraction by which alternate steps are weakened (limping)
+
+    private long timestampNanosec;
+    private double phase;           // Step phase in radians; one stride is 4*pi
+
+    /**
+     * @param seed Seed for the noise and drift, so runs can be repeated exactly
+     * @param rateHz Nominal sensor event rate
+     * @param jitter Random variation in event spacing, as a fraction of the nominal interval (0 for perfectly regular)
+     * @param noise Standard deviation of the sensor noise added to each axis (m/s^2)
+     * @param pitchRadians Forward tilt of the device
+     * @param rollRadians Sideways tilt of the device
+     */
+    public SyntheticGaitGenerator(long seed, double rateHz, double jitter, double noise, double pitchRadians, double rollRadians) {
+        random = new Random(seed);
+        intervalNanosec = (long) (1000000000L / rateHz);
+        this.jitter = jitter;
+        this.noise = noise;
+        sinPitch = Math.sin(pitchRadians);
+        cosPitch = Math.cos(pitchRadians);
+        sinRoll = Math.sin(rollRadians);
+        cosRoll = Math.cos(rollRadians);
+        setActivity(STATIONARY);
+    }
+
+    /**
+     * Changes what the simulated wearer is doing. Takes effect from the next event.
+     * @param activity STATIONARY, WALKING, LIMPING or RUNNING
+     */
+    public void setActivity(int activity) {
+        this.activity = activity;
+        switch(activity) {
+            case WALKING:
+                targetStepHz = 1.7 + random.nextDouble() * 0.4;
+                amplitude = 2.5;
+                asymmetry = 0;
+                break;
+            case LIMPING:
+                targetStepHz = 1.3 + random.nextDouble() * 0.3;
+                amplitude = 2.0;
+                asymmetry = 0.5;
+                break;
+            case RUNNING:
+                targetStepHz = 2.6 + random.nextDouble() * 0.4;
+                amplitude = 8.0;
+                asymmetry = 0;
+                break;
+            default:
+                targetStepHz = 0;
+                amplitude = 0;
+                asymmetry = 0;
+                break;
+        }
+        stepHz = targetStepHz;
+    }
+
+    public int getActivity() {
+        return activity;
+    }
+
+    /**
+     * Sets the timestamp of the next event, e.g. to line the stream up with a sensor clock.
+     * @param nanosec Timestamp (nanoseconds)
+     */
+    public void setTimestamp(long nanosec) {
+        timestampNanosec = nanosec;
+    }
+
+    /**
+     * Generates the next event.
+     * @param xyz Receives the X, Y and Z acceleration in the device's frame
+     * @return The event's timestamp (nanoseconds)
+     */
+    public long next(float[] xyz) {
+        long step = intervalNanosec;
+        if(jitter > 0) {
+            step += (long) (intervalNanosec * jitter * (random.nextDouble() * 2 - 1));
+        }
+        timestampNanosec += step;
+
+        double vertical = GRAVITY, forwards = 0, sideways = 0;
+        if(amplitude > 0) {
+            // Slow random walk in cadence, pulled back towards the activity's typical rate
+            stepHz += (targetStepHz - stepHz) * 0.001 + random.nextGaussian() * 0.0005;
+            phase += 2 * Math.PI * stepHz * step / 1e9;
+            if(phase >= 4 * Math.PI) {
+                phase -= 4 * Math.PI;
+            }
+
+            // Every other step is weaker when limping, which shows up as poor step symmetry.
+            double stepScale = (asymmetry > 0 && phase >= 2 * Math.PI) ? 1 - asymmetry : 1;
+            vertical += stepScale * amplitude * (Math.sin(phase) + 0.3 * Math.sin(2 * phase + 0.5));
+            forwards = stepScale * amplitude * 0.5 * Math.sin(phase + Math.PI / 2);
+            sideways = amplitude * 0.25 * Math.sin(phase / 2);
+        }
+
+        // Pitch about the sideways axis, then roll about the forwards axis.
+        double v1 = vertical * cosPitch - forwards * sinPitch;
+        double f1 = vertical * sinPitch + forwards * cosPitch;
+        double v2 = v1 * cosRoll - sideways * sinRoll;
+        double s2 = v1 * sinRoll + sideways * cosRoll;
+
+        xyz[0] = (float) (s2 + random.nextGaussian() * noise);
+        xyz[1] = (float) (f1 + random.nextGaussian() * noise);
+        xyz[2] = (float) (v2 + random.nextGaussian() * noise);
+        return timestampNanosec;
+    }
+
+    /**
+     * Fills arrays with consecutive events, in the form the ingestion server's upload format uses.
+     * @param count Number of events to generate
+     * @param x Receives X acceleration
+     * @param y Receives Y acceleration
+     * @param z Receives Z acceleration
+     * @param tNanosec Receives event timestamps
+     */
+    public void fill(int count, float[] x, float[] y, float[] z, long[] tNanosec) {
+        float[] xyz = new float[3];
+        for(int i = 0; i < count; i++) {
+            tNanosec[i] = next(xyz);
+            x[i] = xyz[0];
+            y[i] = xyz[1];
+            z[i] = xyz[2];
+        }
+    }
+}
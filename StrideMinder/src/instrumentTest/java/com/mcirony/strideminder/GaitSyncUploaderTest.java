@@ -0,0 +1,73 @@
+package com.mcirony.strideminder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that GaitSyncUploader sends rows that are written after the last sync with older timestamps:
+ * raw rows that arrive late, and rollup rows rewritten by GaitParamsDbAdapter.rebuildRollups().
+ */
+public class GaitSyncUploaderTest extends AndroidTestCase {
+    static final String DATABASE_NAME = "sync_test";
+    static final String PREFS_NAME = "sync_test";
+    static final long TEN_MINUTES = 600000L;
+    static final int HOURS = 5;
+
+    private GaitParamsDbAdapter db;
+    private SharedPreferences prefs;
+    private FakeSyncServer server;
+    private long start;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        prefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        server = new FakeSyncServer();
+        db = new GaitParamsDbAdapter(getContext(), DATABASE_NAME).open();
+
+        // Six rows an hour, starting at midnight so every hour is whole.
+        start = TimeBuckets.getInstance().startOf(TimeBuckets.DAY, System.currentTimeMillis() - 2 * 86400000L);
+        for(long t = start; t < start + HOURS * 6 * TEN_MINUTES; t += TEN_MINUTES) {
+            db.insertGaitParams(t, 0.5, 0.6, 0.9, 55);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testSyncSendsLateAndRebuiltRows() throws Exception {
+        GaitSyncUploader uploader = new GaitSyncUploader(db, prefs, server);
+        uploader.sync();
+        assertEquals(HOURS * 6, server.getRowsReceived(GaitParamsDbAdapter.RAW_TABLE));
+        long hours = countHourlyRows();
+        assertEquals(HOURS - 1, hours);    // The last hour is still open
+        assertEquals(hours, server.getRowsReceived(GaitParamsDbAdapter.HOURLY_TABLE));
+        assertEquals(0, uploader.sync());
+
+        // A block from the first hour turns up late, and the rollups are rebuilt to take it in.
+        db.insertGaitParams(start + TEN_MINUTES / 2, 0.1, 0.1, 0.1, 40);
+        db.rebuildRollups(start);
+
+        uploader.sync();
+        assertEquals(HOURS * 6 + 1, server.getRowsReceived(GaitParamsDbAdapter.RAW_TABLE));
+        assertEquals(2 * hours, server.getRowsReceived(GaitParamsDbAdapter.HOURLY_TABLE));
+        assertEquals(0, uploader.sync());
+    }
+
+    private long countHourlyRows() {
+        Cursor c = db.getHourlyGaitParams(0, Long.MAX_VALUE);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
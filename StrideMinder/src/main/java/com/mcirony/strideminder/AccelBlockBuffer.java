@@ -0,0 +1,219 @@
+package com.mcirony.strideminder;
+
+/**
+ * Collects timestamped accelerometer events into fixed-duration blocks ready for processBuffers().
+ * Used by AccelDataCollectorService as events arrive, and by the soak harness to drive the same code
+ * with synthetic events.
+ * Blocks can be captured in double precision, for GaitAnalyser, or in single precision, for FloatGaitAnalyser,
+ * which needs half the memory. MoeNilssenAccelProcessor.processBlock() takes either.
+ * Not thread-safe: events must all be added from one thread.
+ */
+public class AccelBlockBuffer {
+
+    /**
+     * One completed block of accelerometry. The arrays belong to the block once it's been handed out,
+     * so it's safe to process it on another thread while the buffer fills up the next one.
+     * A double precision block has x, y, z and t set; a single precision one has xf, yf, zf and tf instead.
+     */
+    public static class Block {
+        public final long startTimeMillisec;
+        public final int size;
+        public final double[] x, y, z, t;
+        public final float[] xf, yf, zf, tf;
+
+        Block(long startTimeMillisec, int size, double[] x, double[] y, double[] z, double[] t) {
+            this.startTimeMillisec = startTimeMillisec;
+            this.size = size;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.t = t;
+            xf = yf = zf = tf = null;
+        }
+
+        Block(long startTimeMillisec, int size, float[] xf, float[] yf, float[] zf, float[] tf) {
+            this.startTimeMillisec = startTimeMillisec;
+            this.size = size;
+            this.xf = xf;
+            this.yf = yf;
+            this.zf = zf;
+            this.tf = tf;
+            x = y = z = t = null;
+        }
+
+        public boolean isFloat() {
+            return xf != null;
+        }
+
+        /**
+         * @param i Event index
+         * @return Time of the event since the start of the block (nanoseconds)
+         */
+        public double timeAt(int i) {
+            return xf != null ? tf[i] : t[i];
+        }
+    }
+
+    // Buffers holding X, Y, Z accel values and relative timestamps of SensorEvents. Only one set is used.
+    double[] bufferX;
+    double[] bufferY;
+    double[] bufferZ;
+    double[] bufferT;
+    float[] floatX;
+    float[] floatY;
+    float[] floatZ;
+    float[] floatT;
+    int currentBufferIndex;
+    long lastRelativeNanosec;    // Time of the last event stored, since the start of the block
+
+    // Start time is recorded when init() is called
+    long bufferStartTimeMillisec;
+    long bufferStartTimeNanosec;
+
+    final long blockDurationNanosec;    // Duration at which to cut off buffer and process data (in nanoseconds)
+    final int bufferSize;    // Capacity of arrays. A block is cut short if it fills up before blockDurationNanosec.
+    final boolean floatPrecision;    // Capture single precision blocks instead of double
+    boolean bufferReady = false;    // True when buffers are ready for writing, false when they need to be initialised
+
+    /**
+     * @param blockDurationNanosec Duration of each block (nanoseconds)
+     * @param bufferSize Maximum number of events in a block
+     */
+    public AccelBlockBuffer(long blockDurationNanosec, int bufferSize) {
+        this(blockDurationNanosec, bufferSize, false);
+    }
+
+    /**
+     * @param blockDurationNanosec Duration of each block (nanoseconds)
+     * @param bufferSize Maximum number of events in a block
+     * @param floatPrecision True to capture single precision blocks
+     */
+    public AccelBlockBuffer(long blockDurationNanosec, int bufferSize, boolean floatPrecision) {
+        this.blockDurationNanosec = blockDurationNanosec;
+        this.bufferSize = bufferSize;
+        this.floatPrecision = floatPrecision;
+    }
+
+    /**
+     * @return True if the buffers are ready for events, false if init() needs calling first.
+     */
+    public boolean isReady() {
+        return bufferReady;
+    }
+
+    /**
+     * Sets up the accelerometry buffers for the next sampling window
+     * @param msec Starting time (milliseconds since epoch)
+     * @param nsec Starting time (nanoseconds - locally consistent but not an absolute measurement)
+     */
+    public void init(long msec, long nsec) {
+        bufferStartTimeMillisec = msec;
+        bufferStartTimeNanosec = nsec;
+        if(floatPrecision) {
+            floatX = new float[bufferSize];
+            floatY = new float[bufferSize];
+            floatZ = new float[bufferSize];
+            floatT = new float[bufferSize];
+        } else {
+            bufferX = new double[bufferSize];
+            bufferY = new double[bufferSize];
+            bufferZ = new double[bufferSize];
+            bufferT = new double[bufferSize];
+        }
+        currentBufferIndex = 0;
+        lastRelativeNanosec = 0;
+        bufferReady = true;
+    }
+
+    /**
+     * Carries on filling a partly captured block, e.g. one read back from an AccelJournal after a restart.
+     * The buffer takes over the block's arrays if they're the right precision, and copies them if not.
+     * @param partial The partial block
+     * @param startNanosec Sensor clock time at the start of the block (nanoseconds)
+     */
+    public void restore(Block partial, long startNanosec) {
+        init(partial.startTimeMillisec, startNanosec);
+        if(floatPrecision == partial.isFloat()) {
+            bufferX = partial.x;
+            bufferY = partial.y;
+            bufferZ = partial.z;
+            bufferT = partial.t;
+            floatX = partial.xf;
+            floatY = partial.yf;
+            floatZ = partial.zf;
+            floatT = partial.tf;
+        } else {
+            for(int i = 0; i < partial.size; i++) {
+                if(floatPrecision) {
+                    floatX[i] = (float) partial.x[i];
+                    floatY[i] = (float) partial.y[i];
+                    floatZ[i] = (float) partial.z[i];
+                    floatT[i] = (float) partial.t[i];
+                } else {
+                    bufferX[i] = partial.xf[i];
+                    bufferY[i] = partial.yf[i];
+                    bufferZ[i] = partial.zf[i];
+                    bufferT[i] = partial.tf[i];
+                }
+            }
+        }
+        currentBufferIndex = partial.size;
+        lastRelativeNanosec = partial.size > 0 ? (long) partial.timeAt(partial.size - 1) : 0;
+        bufferReady = currentBufferIndex < bufferSize;
+    }
+
+    /**
+     * Checks that an event can carry on the block being captured. After a restart the sensor clock may have
+     * moved on past the end of a restored block, or been reset, in which case the block has to end where it is.
+     * @param timestampNanosec Timestamp of the next event (nanoseconds)
+     * @return The block so far if the event can't be added to it (the buffer then needs init()), otherwise null.
+     */
+    public Block cutIfStale(long timestampNanosec) {
+        if(!bufferReady || currentBufferIndex == 0) {
+            return null;
+        }
+        long relative = timestampNanosec - bufferStartTimeNanosec;
+        if(relative < lastRelativeNanosec || relative >= blockDurationNanosec) {
+            bufferReady = false;
+            return completedBlock();
+        }
+        return null;
+    }
+
+    /**
+     * Stores one accelerometer event. init() must have been called since the last block was completed.
+     * @param timestampNanosec Event timestamp (nanoseconds, same clock as passed to init())
+     * @param x X acceleration
+     * @param y Y acceleration
+     * @param z Z acceleration
+     * @return The completed block if this event finished one, otherwise null.
+     */
+    public Block add(long timestampNanosec, float x, float y, float z) {
+        lastRelativeNanosec = timestampNanosec - bufferStartTimeNanosec;
+        if(floatPrecision) {
+            floatX[currentBufferIndex] = x;
+            floatY[currentBufferIndex] = y;
+            floatZ[currentBufferIndex] = z;
+            floatT[currentBufferIndex] = lastRelativeNanosec;
+        } else {
+            bufferX[currentBufferIndex] = x;
+            bufferY[currentBufferIndex] = y;
+            bufferZ[currentBufferIndex] = z;
+            bufferT[currentBufferIndex] = lastRelativeNanosec;
+        }
+        currentBufferIndex++;
+
+        if(timestampNanosec >= bufferStartTimeNanosec + blockDurationNanosec || currentBufferIndex == bufferSize) {
+            bufferReady = false;
+            return completedBlock();
+        }
+        return null;
+    }
+
+    private Block completedBlock() {
+        if(floatPrecision) {
+            return new Block(bufferStartTimeMillisec, currentBufferIndex, floatX, floatY, floatZ, floatT);
+        }
+        return new Block(bufferStartTimeMillisec, currentBufferIndex, bufferX, bufferY, bufferZ, bufferT);
+    }
+}
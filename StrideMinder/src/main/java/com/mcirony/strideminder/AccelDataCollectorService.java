@@ -1,5 +1,11 @@
 package com.mcirony.strideminder;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -15,6 +21,9 @@ import android.util.Log;
 /**
  * Runs in the background collecting accelerometry data.
  * This service maintains a partial wake lock when running and does not self-terminate.
+ * Samples and unprocessed blocks are journalled (see AccelJournal), so if the process is killed,
+ * the START_STICKY restart carries on from where it left off.
+ * Blocks are analysed and written one at a time on a single worker thread, in the order they were completed.
  */
 public class AccelDataCollectorService extends Service implements SensorEventListener{
     MoeNilssenAccelProcessor mnap;
@@ -23,20 +32,27 @@ public class AccelDataCollectorService extends Service implements SensorEventLis
     SensorManager sm;
     Sensor acc;
 
-    // Buffers holding X, Y, Z accel values and relative timestamps of SensorEvents
-    double[] bufferX;
-    double[] bufferY;
-    double[] bufferZ;
-    double[] bufferT;
-    int currentBufferIndex;
-
-    // Start time is recorded when initBuffers() is called
-    long bufferStartTimeMillisec;
-    long bufferStartTimeNanosec;
-
     long blockDurationNanosec = 10000000000L;    // Duration at which to cut off buffer and process data (in nanoseconds)
     int bufferSize = 1500;    // Initial capacity of arrays - set to accommodate 10 seconds of updates approx. 0.01 seconds apart + 50%.
-    boolean bufferReady = false;    // True when buffers are ready for writing, false when they need to be initialised
+    AccelBlockBuffer buffer;    // Created in onCreate(), in the precision set by the float_precision resource
+
+    static final String JOURNAL_FILE = "accel_journal";
+    static final int JOURNAL_SLOTS = 4;    // The window being captured plus up to three awaiting processing
+    AccelJournal journal;
+    boolean resumedCapture = false;    // True until the first event after restoring a journalled window
+
+    // Analyses blocks and writes them to the database. One thread, so only one block uses the database at a time.
+    ExecutorService processor;
+
+    // Set while an instance exists. Services run in the app's process, so this is all MainMenu needs to check.
+    private static volatile boolean running = false;
+
+    /**
+     * @return True if the service is currently running.
+     */
+    public static boolean isRunning() {
+        return running;
+    }
 
     @Override
     public IBinder onBind(Intent arg0) {
@@ -49,9 +65,61 @@ public class AccelDataCollectorService extends Service implements SensorEventLis
     @Override
     public void onCreate() {
         super.onCreate();
+        running = true;
         sm = (SensorManager)getSystemService(SENSOR_SERVICE);
         acc = sm.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
         mnap = new MoeNilssenAccelProcessor(getApplicationContext());
+        mnap.setCadenceOnly(getResources().getBoolean(R.bool.cadence_only_analysis), getResources().getInteger(R.integer.cadence_cross_check_every));
+        buffer = new AccelBlockBuffer(blockDurationNanosec, bufferSize, getResources().getBoolean(R.bool.float_precision));
+        GaitSyncService.scheduleIfNeeded(getApplicationContext());
+        processor = Executors.newSingleThreadExecutor();
+
+        // Pick up whatever a killed process left in the journal.
+        List<AccelJournal.Entry> pending = null;
+        AccelBlockBuffer.Block filled = null;
+        int filledSlot = -1;
+        try {
+            long commitIntervalNanosec = getResources().getInteger(R.integer.journal_commit_interval_ms) * 1000000L;
+            journal = new AccelJournal(new File(getFilesDir(), JOURNAL_FILE), bufferSize, JOURNAL_SLOTS, commitIntervalNanosec);
+            pending = journal.pendingBlocks();
+            AccelBlockBuffer.Block partial = journal.resumeCapture();
+            if(partial != null) {
+                buffer.restore(partial, journal.getCaptureStartNanosec());
+                resumedCapture = buffer.isReady();
+                if(!resumedCapture) {
+                    filled = partial;    // Filled up just before the process died
+                    filledSlot = journal.complete();
+                }
+            }
+        } catch(IOException e) {
+            Log.w("StrideMinder", "Couldn't open accelerometry journal, carrying on without it: " + e.getMessage());
+        }
+        final List<AccelJournal.Entry> replay = pending;
+
+        // Process any blocks the last process didn't get to, then fill in any rollups that were missed
+        // while the service wasn't running, including those the replayed blocks fall in.
+        processor.execute(new Runnable() {
+            public void run() {
+                long from = Long.MAX_VALUE;
+                if(replay != null) {
+                    for(AccelJournal.Entry entry : replay) {
+                        AccelBlockBuffer.Block block = entry.block;
+                        mnap.processBlock(block, true, false);
+                        journal.done(entry.slot);
+                        from = Math.min(from, block.startTimeMillisec);
+                    }
+                    Log.i("StrideMinder", "Replayed " + replay.size() + " journalled blocks");
+                }
+
+                GaitParamsDbAdapter db = new GaitParamsDbAdapter(getApplicationContext());
+                db.open();
+                db.rebuildRollups(Math.min(from, db.getRollupWatermark()));
+                db.close();
+            }
+        });
+        if(filled != null) {
+            processBlock(filled, filledSlot);
+        }
 
         pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "StrideMinder WakeLock");
@@ -65,6 +133,18 @@ public class AccelDataCollectorService extends Service implements SensorEventLis
         super.onDestroy();
         sm.unregisterListener(this, acc);
         wl.release();
+        // Stopped deliberately, so the part-captured window isn't wanted. Blocks still waiting are processed as
+        // normal, and the journal is closed once they're done, since each one frees its slot as it finishes.
+        if(journal != null) {
+            journal.discardCapture();
+            processor.execute(new Runnable() {
+                public void run() {
+                    journal.close();
+                }
+            });
+        }
+        processor.shutdown();
+        running = false;
     }
 
     /**
@@ -95,46 +175,55 @@ public class AccelDataCollectorService extends Service implements SensorEventLis
      */
     @Override
     public void onSensorChanged(SensorEvent event) {
+        // A window restored from the journal ends early if this event can't follow on from it.
+        if(resumedCapture) {
+            resumedCapture = false;
+            AccelBlockBuffer.Block stale = buffer.cutIfStale(event.timestamp);
+            if(stale != null) {
+                int slot = journal.complete();
+                if(stale.size > 1 && stale.timeAt(stale.size - 1) >= blockDurationNanosec / 2) {
+                    processBlock(stale, slot);
+                } else {
+                    journal.done(slot);    // Too short to analyse
+                }
+            }
+        }
+
         // Init buffers if required
-        if(!bufferReady) {
-            initBuffers(System.currentTimeMillis(), event.timestamp);
+        if(!buffer.isReady()) {
+            buffer.init(System.currentTimeMillis(), event.timestamp);
+            if(journal != null) {
+                journal.begin(buffer.bufferStartTimeMillisec, event.timestamp);
+            }
         }
 
-        // Store values from Event in buffers
-        bufferX[currentBufferIndex] = event.values[0];
-        bufferY[currentBufferIndex] = event.values[1];
-        bufferZ[currentBufferIndex] = event.values[2];
-        bufferT[currentBufferIndex] = event.timestamp - bufferStartTimeNanosec;
-        currentBufferIndex++;
+        // Store values from Event in the journal and buffers
+        if(journal != null) {
+            journal.append(event.timestamp, event.values[0], event.values[1], event.values[2]);
+        }
+        AccelBlockBuffer.Block block = buffer.add(event.timestamp, event.values[0], event.values[1], event.values[2]);
 
         // When a recording block has been completed, send the buffers for processing.
-        // Autocorrelation can take a few seconds, so process in another thread to avoid blocking this one.
-        if(event.timestamp >= bufferStartTimeNanosec + blockDurationNanosec){
-            Log.w("StrideMinder", "Processing Buffers");
-            new Thread(new Runnable() {
-                public void run() {
-                    mnap.processBuffers(bufferStartTimeMillisec, currentBufferIndex, bufferX, bufferY, bufferZ, bufferT, true, false);
-                }
-            }).start();
-
-            bufferReady = false;
+        if(block != null) {
+            processBlock(block, journal != null ? journal.complete() : -1);
         }
     }
 
-
     /**
-     * Sets up the accelerometry buffers for the next sampling window
-     * @param msec Starting time (milliseconds since epoch)
-     * @param nsec Starting time (nanoseconds - locally consistent but not an absolute measurement)
+     * Processes a block and then frees its journal slot.
+     * Autocorrelation can take a few seconds, so it's queued for the worker thread to avoid blocking this one.
+     * @param block The completed block
+     * @param slot The block's journal slot, or -1 if it isn't journalled
      */
-    private void initBuffers(long msec, long nsec) {
-        bufferStartTimeMillisec = msec;
-        bufferStartTimeNanosec = nsec;
-        bufferX = new double[bufferSize];
-        bufferY = new double[bufferSize];
-        bufferZ = new double[bufferSize];
-        bufferT = new double[bufferSize];
-        currentBufferIndex = 0;
-        bufferReady = true;
+    private void processBlock(final AccelBlockBuffer.Block block, final int slot) {
+        Log.w("StrideMinder", "Processing Buffers");
+        processor.execute(new Runnable() {
+            public void run() {
+                mnap.processBlock(block, true, false);
+                if(slot >= 0) {
+                    journal.done(slot);
+                }
+            }
+        });
     }
 }
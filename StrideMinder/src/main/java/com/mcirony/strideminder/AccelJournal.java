@@ -0,0 +1,282 @@
+package com.mcirony.strideminder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A memory-mapped journal of accelerometry that hasn't made it into the database yet, so that a
+ * START_STICKY restart can pick up where the killed process left off.
+ *
+ * The journal file is a small fixed set of slots, each big enough for one block. The window being
+ * captured is written into a CAPTURING slot, one sample at a time, by plain stores into the mapped
+ * file. The slot's sample count is only updated every commitIntervalNanosec of sample time, and only
+ * counted samples are replayed, so a restart loses at most that much of the window. When a block
+ * completes its slot becomes PENDING until processing has written it to the database, then FREE.
+ *
+ * Writes to a mapping reach the kernel's page cache straight away, so they survive the process being
+ * killed without any system calls on the sampling path. They aren't forced to storage, so a power
+ * cut or kernel crash can still lose them.
+ *
+ * If every slot is in use (processing has fallen far behind), windows are simply captured without
+ * journalling until a slot frees up.
+ *
+ * Slot layout: int state, int count, long startMillisec, long startNanosec, long sequence, then count
+ * samples of (long nanoseconds since start, float x, float y, float z).
+ */
+public class AccelJournal {
+    static final int MAGIC = 0x534D4A31;    // "SMJ1"
+    static final int FILE_HEADER_BYTES = 32;
+    static final int SLOT_HEADER_BYTES = 32;
+    static final int SAMPLE_BYTES = 20;
+
+    static final int FREE = 0;
+    static final int CAPTURING = 1;
+    static final int PENDING = 2;
+
+    private final int bufferSize;
+    private final int slotCount;
+    private final int slotBytes;
+    private final long commitIntervalNanosec;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+
+    // Capture state. Only touched by the sensor thread, apart from under the lock in begin()/complete().
+    private int captureSlot = -1;
+    private int captureCount;
+    private long captureStartNanosec;
+    private long lastCommitNanosec;
+    private long nextSequence;
+
+    /**
+     * Opens the journal, creating it if needed. A journal written with a different buffer size or slot count is discarded.
+     * @param path File to keep the journal in
+     * @param bufferSize Maximum samples per block, as passed to AccelBlockBuffer
+     * @param slotCount Number of blocks the journal can hold, including the one being captured
+     * @param commitIntervalNanosec Most sample time a restart may lose (nanoseconds)
+     */
+    public AccelJournal(File path, int bufferSize, int slotCount, long commitIntervalNanosec) throws IOException {
+        this.bufferSize = bufferSize;
+        this.slotCount = slotCount;
+        this.slotBytes = SLOT_HEADER_BYTES + bufferSize * SAMPLE_BYTES;
+        this.commitIntervalNanosec = commitIntervalNanosec;
+
+        file = new RandomAccessFile(path, "rw");
+        long length = FILE_HEADER_BYTES + (long) slotCount * slotBytes;
+        boolean fresh = file.length() != length;
+        file.setLength(length);
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        map.order(ByteOrder.nativeOrder());
+
+        if(fresh || map.getInt(0) != MAGIC || map.getInt(4) != bufferSize || map.getInt(8) != slotCount) {
+            for(int i = 0; i < slotCount; i++) {
+                map.putInt(slotOffset(i), FREE);
+            }
+            map.putInt(0, MAGIC);
+            map.putInt(4, bufferSize);
+            map.putInt(8, slotCount);
+        }
+
+        for(int i = 0; i < slotCount; i++) {
+            if(map.getInt(slotOffset(i)) != FREE) {
+                nextSequence = Math.max(nextSequence, map.getLong(slotOffset(i) + 24) + 1);
+            }
+        }
+    }
+
+    /**
+     * Reads back every block that was complete but not yet processed when the journal was last used, oldest first.
+     * Each must be passed to done() once it's been processed.
+     * @return Blocks paired with their slots
+     */
+    public synchronized List<Entry> pendingBlocks() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for(int i = 0; i < slotCount; i++) {
+            if(map.getInt(slotOffset(i)) == PENDING) {
+                entries.add(new Entry(i, map.getLong(slotOffset(i) + 24), readBlock(i)));
+            }
+        }
+        // Oldest first, so rollups see blocks in the order they were captured
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Reads back the window that was being captured when the journal was last used, and carries on
+     * capturing into it.
+     * @return The committed part of the window, or null if there wasn't one.
+     */
+    public synchronized AccelBlockBuffer.Block resumeCapture() {
+        for(int i = 0; i < slotCount; i++) {
+            int offset = slotOffset(i);
+            if(map.getInt(offset) == CAPTURING) {
+                AccelBlockBuffer.Block block = readBlock(i);
+                if(block.size == 0) {
+                    map.putInt(offset, FREE);
+                    return null;
+                }
+                captureSlot = i;
+                captureCount = block.size;
+                captureStartNanosec = map.getLong(offset + 16);
+                lastCommitNanosec = (long) block.t[block.size - 1];
+                return block;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Sensor clock time at the start of the window being captured (nanoseconds).
+     */
+    public long getCaptureStartNanosec() {
+        return captureStartNanosec;
+    }
+
+    /**
+     * Starts journalling a new capture window. Any window already being captured is dropped.
+     * @param startMillisec Start time (msec since epoch), as passed to AccelBlockBuffer.init()
+     * @param startNanosec Start time (sensor clock, nanoseconds)
+     */
+    public synchronized void begin(long startMillisec, long startNanosec) {
+        if(captureSlot >= 0) {
+            map.putInt(slotOffset(captureSlot), FREE);
+        }
+        captureSlot = -1;
+        for(int i = 0; i < slotCount; i++) {
+            if(map.getInt(slotOffset(i)) == FREE) {
+                captureSlot = i;
+                break;
+            }
+        }
+        if(captureSlot < 0) {
+            return;
+        }
+
+        int offset = slotOffset(captureSlot);
+        map.putInt(offset + 4, 0);
+        map.putLong(offset + 8, startMillisec);
+        map.putLong(offset + 16, startNanosec);
+        map.putLong(offset + 24, nextSequence++);
+        map.putInt(offset, CAPTURING);
+        captureCount = 0;
+        captureStartNanosec = startNanosec;
+        lastCommitNanosec = 0;
+    }
+
+    /**
+     * Journals one sample of the current window. Cheap: a few stores into the mapping, plus a count
+     * update once per commit interval.
+     * @param timestampNanosec Event timestamp (sensor clock, nanoseconds)
+     */
+    public void append(long timestampNanosec, float x, float y, float z) {
+        if(captureSlot < 0 || captureCount == bufferSize) {
+            return;
+        }
+        long relative = timestampNanosec - captureStartNanosec;
+        int offset = slotOffset(captureSlot);
+        int sample = offset + SLOT_HEADER_BYTES + captureCount * SAMPLE_BYTES;
+        map.putLong(sample, relative);
+        map.putFloat(sample + 8, x);
+        map.putFloat(sample + 12, y);
+        map.putFloat(sample + 16, z);
+        captureCount++;
+
+        if(relative - lastCommitNanosec >= commitIntervalNanosec) {
+            map.putInt(offset + 4, captureCount);
+            lastCommitNanosec = relative;
+        }
+    }
+
+    /**
+     * Marks the current window as a complete block awaiting processing.
+     * @return The block's slot, to pass to done(), or -1 if the window wasn't journalled.
+     */
+    public synchronized int complete() {
+        int slot = captureSlot;
+        if(slot >= 0) {
+            int offset = slotOffset(slot);
+            map.putInt(offset + 4, captureCount);
+            map.putInt(offset, PENDING);
+        }
+        captureSlot = -1;
+        return slot;
+    }
+
+    /**
+     * Frees a block's slot once it has been processed.
+     * @param slot Slot returned by complete() or held by an entry from pendingBlocks(). Ignored if -1.
+     */
+    public synchronized void done(int slot) {
+        if(slot >= 0) {
+            map.putInt(slotOffset(slot), FREE);
+        }
+    }
+
+    /**
+     * Drops the window being captured, e.g. when collection is deliberately stopped.
+     */
+    public synchronized void discardCapture() {
+        if(captureSlot >= 0) {
+            map.putInt(slotOffset(captureSlot), FREE);
+        }
+        captureSlot = -1;
+    }
+
+    /**
+     * Closes the journal file. Blocks still pending stay in the file for next time.
+     */
+    public void close() {
+        try {
+            file.close();
+        } catch(IOException e) {
+            // Nothing useful to do; the mapping stays valid until it's garbage collected.
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return FILE_HEADER_BYTES + slot * slotBytes;
+    }
+
+    private AccelBlockBuffer.Block readBlock(int slot) {
+        int offset = slotOffset(slot);
+        int count = Math.max(0, Math.min(bufferSize, map.getInt(offset + 4)));
+        double[] x = new double[bufferSize];
+        double[] y = new double[bufferSize];
+        double[] z = new double[bufferSize];
+        double[] t = new double[bufferSize];
+        for(int i = 0; i < count; i++) {
+            int sample = offset + SLOT_HEADER_BYTES + i * SAMPLE_BYTES;
+            t[i] = map.getLong(sample);
+            x[i] = map.getFloat(sample + 8);
+            y[i] = map.getFloat(sample + 12);
+            z[i] = map.getFloat(sample + 16);
+        }
+        return new AccelBlockBuffer.Block(map.getLong(offset + 8), count, x, y, z, t);
+    }
+
+    /**
+     * A block read back from the journal, with the slot to free once it's processed.
+     */
+    public static class Entry {
+        public final int slot;
+        final long sequence;
+        public final AccelBlockBuffer.Block block;
+
+        Entry(int slot, long sequence, AccelBlockBuffer.Block block) {
+            this.slot = slot;
+            this.sequence = sequence;
+            this.block = block;
+        }
+    }
+}
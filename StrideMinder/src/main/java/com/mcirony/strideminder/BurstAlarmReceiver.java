@@ -0,0 +1,18 @@
+package com.mcirony.strideminder;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives BurstSamplingService's wake-up alarm. Takes the burst wake lock before starting the service,
+ * so the device can't go back to sleep in between.
+ */
+public class BurstAlarmReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        BurstSamplingService.acquireWakeLock(context, BurstSamplingService.policyFor(context));
+        context.startService(new Intent(context, BurstSamplingService.class));
+    }
+}
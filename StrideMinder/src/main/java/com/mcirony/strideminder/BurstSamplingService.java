@@ -0,0 +1,258 @@
+package com.mcirony.strideminder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Collects accelerometry in short bursts instead of continuously, as an alternative to AccelDataCollectorService.
+ *
+ * An alarm wakes the device and BurstAlarmReceiver starts this service holding a wake lock. The service
+ * captures a few blocks, stops the accelerometer, runs processBuffers() on them, schedules the next alarm
+ * using a DutyCyclePolicy (short gaps while walking, longer ones when idle), then releases the wake lock
+ * and stops. Between bursts neither the sensor nor the CPU is kept on.
+ *
+ * The burst settings come from res/values/config.xml.
+ */
+public class BurstSamplingService extends Service implements SensorEventListener {
+    static final String PREFS_NAME = "burst";
+    static final String PREF_INTERVAL = "burst_interval";
+    static final String PREF_ENABLED = "burst_enabled";
+    static final double BACKOFF_FACTOR = 2;
+
+    // Held from the alarm until the burst has been processed. Static because the receiver acquires it
+    // before the service exists.
+    private static PowerManager.WakeLock wakeLock;
+
+    SensorManager sm;
+    Sensor acc;
+    MoeNilssenAccelProcessor mnap;
+    DutyCyclePolicy policy;
+
+    // Analyses bursts off the main thread. One thread, so the processor's analysers are never shared.
+    ExecutorService processor;
+
+    long blockDurationNanosec = 10000000000L;    // Same block layout as AccelDataCollectorService
+    int bufferSize = 1500;
+    AccelBlockBuffer buffer;
+    final List<AccelBlockBuffer.Block> blocks = new ArrayList<AccelBlockBuffer.Block>();
+    volatile boolean sampling = false;    // True from the start of a burst until it has been processed
+
+    /**
+     * Starts burst sampling: takes the first burst now and schedules the rest.
+     * @param context Context to start from
+     */
+    public static void start(Context context) {
+        setEnabled(context, true);
+        DutyCyclePolicy policy = policyFor(context);
+        acquireWakeLock(context, policy);
+        scheduleBurst(context, policy.getMaxInterval());
+        context.startService(new Intent(context, BurstSamplingService.class));
+    }
+
+    /**
+     * Stops burst sampling. A burst already in progress is allowed to finish but won't schedule another,
+     * and a burst whose service hasn't started yet won't run.
+     * @param context Context to stop from
+     */
+    public static void stop(Context context) {
+        setEnabled(context, false);
+        PendingIntent pi = alarmIntent(context, PendingIntent.FLAG_NO_CREATE);
+        if(pi != null) {
+            AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            am.cancel(pi);
+            pi.cancel();
+        }
+    }
+
+    /**
+     * Whether burst sampling is switched on. This is kept in preferences by start() and stop() rather than
+     * looked up from the alarm, so it's cheap enough to check on every UI refresh.
+     * @param context Context to check from
+     * @return True if burst sampling is switched on, so bursts are scheduled.
+     */
+    public static boolean isScheduled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if(!prefs.contains(PREF_ENABLED)) {
+            // Switched on before the setting was kept, if at all, so go by the alarm this once.
+            setEnabled(context, alarmIntent(context, PendingIntent.FLAG_NO_CREATE) != null);
+        }
+        return prefs.getBoolean(PREF_ENABLED, false);
+    }
+
+    private static void setEnabled(Context context, boolean enabled) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().putBoolean(PREF_ENABLED, enabled).commit();
+    }
+
+    /**
+     * Acquires the burst wake lock, with a timeout so a burst that never completes can't hold it forever.
+     * Called by BurstAlarmReceiver before starting the service.
+     */
+    static synchronized void acquireWakeLock(Context context, DutyCyclePolicy policy) {
+        if(wakeLock == null) {
+            PowerManager pm = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "StrideMinder Burst WakeLock");
+            wakeLock.setReferenceCounted(false);
+        }
+        wakeLock.acquire(policy.getBlocksPerBurst() * 10000L + 60000L);
+    }
+
+    static synchronized void releaseWakeLock() {
+        if(wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+
+    /**
+     * Builds the duty cycle policy from the app's resources, carrying on from the last saved interval.
+     */
+    static DutyCyclePolicy policyFor(Context context) {
+        DutyCyclePolicy policy = newPolicy(context.getResources());
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        policy.setInterval(prefs.getLong(PREF_INTERVAL, 0));
+        return policy;
+    }
+
+    /**
+     * Builds a fresh duty cycle policy from the settings in res/values/config.xml.
+     */
+    static DutyCyclePolicy newPolicy(Resources res) {
+        return new DutyCyclePolicy(res.getInteger(R.integer.burst_min_interval_sec) * 1000L,
+                res.getInteger(R.integer.burst_max_interval_sec) * 1000L, BACKOFF_FACTOR, res.getInteger(R.integer.burst_blocks));
+    }
+
+    private static PendingIntent alarmIntent(Context context, int flags) {
+        Intent i = new Intent(context, BurstAlarmReceiver.class);
+        return PendingIntent.getBroadcast(context, 0, i, flags);
+    }
+
+    private static void scheduleBurst(Context context, long delayMillis) {
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        long at = SystemClock.elapsedRealtime() + delayMillis;
+        PendingIntent pi = alarmIntent(context, PendingIntent.FLAG_UPDATE_CURRENT);
+        // From KitKat, set() may deliver the alarm well after it's due, which would stretch the policy's intervals.
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            am.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, pi);
+        } else {
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, pi);
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent arg0) {
+        return null;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sm = (SensorManager)getSystemService(SENSOR_SERVICE);
+        acc = sm.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mnap = new MoeNilssenAccelProcessor(getApplicationContext());
+        mnap.setCadenceOnly(getResources().getBoolean(R.bool.cadence_only_analysis), getResources().getInteger(R.integer.cadence_cross_check_every));
+        policy = policyFor(getApplicationContext());
+        buffer = new AccelBlockBuffer(blockDurationNanosec, bufferSize, getResources().getBoolean(R.bool.float_precision));
+        GaitSyncService.scheduleIfNeeded(getApplicationContext());
+        processor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Starts a burst, unless one is already running or burst sampling has been switched off since it was asked for.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if(!sampling && !isScheduled(this)) {
+            releaseWakeLock();
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+        if(!sampling) {
+            sampling = true;
+            blocks.clear();
+            // If the process dies mid-burst, this fallback keeps the schedule going. It's replaced once the burst is processed.
+            scheduleBurst(this, policy.getMaxInterval());
+            sm.registerListener(this, acc, SensorManager.SENSOR_DELAY_FASTEST);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if(sampling) {
+            sm.unregisterListener(this, acc);
+            releaseWakeLock();
+        }
+        // A burst still being analysed is allowed to finish.
+        processor.shutdown();
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+    /**
+     * Stores accelerometer events until the burst's blocks are complete, then hands them off for processing.
+     * @param event The SensorEvent containing the accelerometer data.
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if(!sampling) {
+            return;
+        }
+        if(!buffer.isReady()) {
+            buffer.init(System.currentTimeMillis(), event.timestamp);
+        }
+
+        AccelBlockBuffer.Block block = buffer.add(event.timestamp, event.values[0], event.values[1], event.values[2]);
+        if(block != null) {
+            blocks.add(block);
+            if(blocks.size() == policy.getBlocksPerBurst()) {
+                sm.unregisterListener(this, acc);
+                processBurst(new ArrayList<AccelBlockBuffer.Block>(blocks));
+            }
+        }
+    }
+
+    /**
+     * Analyses the burst's blocks off the main thread, schedules the next burst, and shuts everything down.
+     */
+    private void processBurst(final List<AccelBlockBuffer.Block> burst) {
+        processor.execute(new Runnable() {
+            public void run() {
+                boolean walking = false;
+                for(AccelBlockBuffer.Block block : burst) {
+                    walking |= mnap.processBlock(block, true, false);
+                }
+
+                long interval = policy.next(walking);
+                getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().putLong(PREF_INTERVAL, interval).commit();
+                if(isScheduled(getApplicationContext())) {
+                    scheduleBurst(getApplicationContext(), interval);
+                }
+                Log.i("StrideMinder", "Burst done, walking " + walking + ", next in " + (interval / 1000) + " s");
+
+                sampling = false;
+                releaseWakeLock();
+                stopSelf();
+            }
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package com.mcirony.strideminder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The data behind one of MainMenu's charts, small enough to save to a file and read back on the UI thread.
+ * MainMenu saves a snapshot each time it loads a chart and shows the saved one at launch, so there's
+ * something on screen before the database has even been opened.
+ * This class has no Android dependencies.
+ */
+public class ChartSnapshot {
+    static final int MAGIC = 0x534D4353;    // "SMCS"
+    static final int VERSION = 1;
+
+    /** Which chart this is: TimeBuckets.HOUR (day chart), DAY (month chart) or MONTH (year chart) */
+    public final int level;
+    public final long[] timestamps;
+    // NaN where the value wasn't measured (cadence-only data). Charts leave those points out.
+    public final double[] strideRegularity;
+    public final double[] strideSymmetry;
+
+    public ChartSnapshot(int level, long[] timestamps, double[] strideRegularity, double[] strideSymmetry) {
+        this.level = level;
+        this.timestamps = timestamps;
+        this.strideRegularity = strideRegularity;
+        this.strideSymmetry = strideSymmetry;
+    }
+
+    /**
+     * Builds a snapshot from the first size rows of a page.
+     * @param level Which chart the page was read for
+     * @param page Rows to copy
+     */
+    public static ChartSnapshot fromPage(int level, GaitParamsPage page) {
+        long[] timestamps = new long[page.size];
+        double[] strideRegularity = new double[page.size];
+        double[] strideSymmetry = new double[page.size];
+        System.arraycopy(page.timestamps, 0, timestamps, 0, page.size);
+        System.arraycopy(page.strideRegularity, 0, strideRegularity, 0, page.size);
+        System.arraycopy(page.strideSymmetry, 0, strideSymmetry, 0, page.size);
+        return new ChartSnapshot(level, timestamps, strideRegularity, strideSymmetry);
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    /**
+     * Reads a snapshot saved by write().
+     * @param file File to read
+     * @return The snapshot, or null if there isn't one or it can't be read.
+     */
+    public static ChartSnapshot read(File file) {
+        if(!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if(in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return null;
+            }
+            int level = in.readUnsignedByte();
+            int size = in.readInt();
+            if(size < 0 || size > 100000) {
+                return null;
+            }
+            long[] timestamps = new long[size];
+            double[] strideRegularity = new double[size];
+            double[] strideSymmetry = new double[size];
+            for(int i = 0; i < size; i++) {
+                timestamps[i] = in.readLong();
+                strideRegularity[i] = in.readDouble();
+                strideSymmetry[i] = in.readDouble();
+            }
+            return new ChartSnapshot(level, timestamps, strideRegularity, strideSymmetry);
+        } catch(IOException e) {
+            return null;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    // Nothing useful to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the snapshot. It's written to a temporary file and renamed into place, so a reader never
+     * sees a half-written snapshot.
+     * @param file File to write
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(level);
+            out.writeInt(timestamps.length);
+            for(int i = 0; i < timestamps.length; i++) {
+                out.writeLong(timestamps[i]);
+                out.writeDouble(strideRegularity[i]);
+                out.writeDouble(strideSymmetry[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(file)) {
+            throw new IOException("Couldn't rename " + temp + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.mcirony.strideminder;
+
+/**
+ * Decides how long to sleep between sampling bursts in burst sampling mode.
+ *
+ * While the wearer is walking, bursts come every minIntervalMillisec so that walking is measured often.
+ * Each burst that finds no walking stretches the gap by backoffFactor, up to maxIntervalMillisec, so a
+ * phone left on a desk overnight is woken up only a handful of times an hour.
+ * This class has no Android dependencies, so the soak harness can drive it with simulated time.
+ */
+public class DutyCyclePolicy {
+    private final long minIntervalMillisec;
+    private final long maxIntervalMillisec;
+    private final double backoffFactor;
+    private final int blocksPerBurst;
+
+    private long intervalMillisec;
+
+    /**
+     * @param minIntervalMillisec Gap between bursts while walking (msec)
+     * @param maxIntervalMillisec Longest gap between bursts when idle (msec)
+     * @param backoffFactor How much the gap grows after each burst without walking (at least 1)
+     * @param blocksPerBurst Number of blocks to capture in each burst
+     */
+    public DutyCyclePolicy(long minIntervalMillisec, long maxIntervalMillisec, double backoffFactor, int blocksPerBurst) {
+        this.minIntervalMillisec = minIntervalMillisec;
+        this.maxIntervalMillisec = Math.max(minIntervalMillisec, maxIntervalMillisec);
+        this.backoffFactor = Math.max(1, backoffFactor);
+        this.blocksPerBurst = Math.max(1, blocksPerBurst);
+        intervalMillisec = minIntervalMillisec;
+    }
+
+    /**
+     * Works out the gap before the next burst, given what the last one found.
+     * @param walking True if any block in the last burst was walking
+     * @return Time from the end of the last burst to the start of the next (msec)
+     */
+    public long next(boolean walking) {
+        if(walking) {
+            intervalMillisec = minIntervalMillisec;
+        } else {
+            intervalMillisec = Math.min(maxIntervalMillisec, (long) (intervalMillisec * backoffFactor));
+        }
+        return intervalMillisec;
+    }
+
+    /**
+     * @return The most recent gap returned by next().
+     */
+    public long getInterval() {
+        return intervalMillisec;
+    }
+
+    /**
+     * Restores the current gap, e.g. from preferences after the process has been restarted.
+     * @param intervalMillisec Gap to carry on from (msec). Clamped to the policy's limits.
+     */
+    public void setInterval(long intervalMillisec) {
+        this.intervalMillisec = Math.max(minIntervalMillisec, Math.min(maxIntervalMillisec, intervalMillisec));
+    }
+
+    public long getMaxInterval() {
+        return maxIntervalMillisec;
+    }
+
+    public int getBlocksPerBurst() {
+        return blocksPerBurst;
+    }
+}
@@ -0,0 +1,292 @@
+package com.mcirony.strideminder;
+
+import java.util.Arrays;
+
+/**
+ * The same Moe-Nilssen analysis as GaitAnalyser, on single-precision buffers.
+ *
+ * Sensor values arrive as floats, and the gait measures are correlation coefficients that don't need
+ * more than three or four significant figures, so this path keeps signals in float[] and halves the
+ * memory traffic of the double path. It also does less work for the same answer:
+ *  - Only the lags the analysis reads are computed. Walking detection and peak finding only look at
+ *    the first half of the autocorrelation, so the second half (a quarter of the multiply-adds, and
+ *    the least reliable lags) is skipped.
+ *  - The mean is subtracted once, and the variance divided out once per lag rather than once per term.
+ *  - Work arrays are kept between calls, so analysing a block allocates nothing.
+ *
+ * The inner loops are plain dot products and element-wise multiply-adds over arrays, written with
+ * independent partial sums so the JIT or ART compiler can pipeline or vectorise them; there are no
+ * library dependencies, so it runs the same on a device or a server.
+ *
+ * Compared with GaitAnalyser on the same blocks (see FloatPathComparison), regularity and symmetry
+ * differ by at most MAX_REGULARITY_ERROR, and walking detection only differs for blocks whose
+ * autocorrelation RMS is within a hair of the threshold.
+ *
+ * Like GaitAnalyser, instances are not safe to share between threads.
+ */
+public class FloatGaitAnalyser {
+    /** Largest difference from GaitAnalyser in step regularity, stride regularity and symmetry, as checked by FloatPathComparison */
+    public static final double MAX_REGULARITY_ERROR = 0.001;
+
+    private float[] xNormalised = new float[0];
+    private float[] yNormalised = new float[0];
+    private float[] zNormalised = new float[0];
+    private float[] vertical = new float[0];
+    private float[] autocorrelated = new float[0];
+    private int size;
+    private double durationNanosec;
+    private StreamingCadenceEstimator stepEstimator;    // Steps in the last block resampled, once they've been looked for
+    private int lags;
+
+    /**
+     * Analyses one block. See GaitAnalyser.analyse(); the steps are the same.
+     *
+     * @param absoluteStartTimeMillisec The system time when recording started for this accelerometry block.
+     * @param bufferSize Number of valid entries in each array
+     * @param xOriginal Array of X acceleration values
+     * @param yOriginal Array of Y acceleration values
+     * @param zOriginal Array of Z acceleration values
+     * @param tOriginal Array of timestamps in nanoseconds, relative to the first event.
+     * @return The gait parameters for this block, or null if it doesn't look like walking.
+     */
+    public GaitParams analyse(long absoluteStartTimeMillisec, int bufferSize, float[] xOriginal, float[] yOriginal, float[] zOriginal, float[] tOriginal) {
+        lags = Math.min(bufferSize, bufferSize / 2 + 1);
+        double eventsDurationNano = resample(bufferSize, xOriginal, yOriginal, zOriginal, tOriginal);
+
+        // Direction of gravity, and the rotation that makes it vertical, exactly as GaitAnalyser works them out.
+        double avgX = sum(xNormalised, bufferSize) / bufferSize;
+        double avgY = sum(yNormalised, bufferSize) / bufferSize;
+        double avgZ = sum(zNormalised, bufferSize) / bufferSize;
+        float avgMag = (float) Math.sqrt((avgX*avgX)+(avgY*avgY)+(avgZ*avgZ));
+        avgX = avgX / avgMag;
+        avgY = avgY / avgMag;
+        avgZ = avgZ / avgMag;
+        double cosTheta = avgZ / avgMag;
+        double sinTheta = Math.sqrt(1-(cosTheta*cosTheta));
+        float bottomLeft = (float) (avgX * sinTheta);
+        float bottomCentre = (float) (avgY * sinTheta);
+        float bottomRight = (float) cosTheta;
+
+        for(int i = 0; i < bufferSize; i++) {
+            vertical[i] = xNormalised[i] * bottomLeft + yNormalised[i] * bottomCentre + zNormalised[i] * bottomRight;
+        }
+
+        autocorrelate(vertical, bufferSize, autocorrelated, lags);
+
+        // Walking detection, over the first half of the autocorrelation as in GaitAnalyser.
+        double rms = 0;
+        for(int i = 0; i < bufferSize / 2; i++) {
+            rms += autocorrelated[i]*autocorrelated[i];
+        }
+        rms = Math.sqrt(rms / bufferSize);
+        if(rms <= GaitAnalyser.WALKING_RMS_THRESHOLD) {
+            return null;
+        }
+
+        // Zero crossings either side of peaks 1 and 2
+        int[] crossingLocations = new int[5];
+        int crossingsFound = 0;
+        for(int i = 0; i < bufferSize / 2; i++) {
+            if(autocorrelated[i] < 0 && autocorrelated[i+1] >= 0 || autocorrelated[i] >= 0 && autocorrelated[i+1] < 0) {
+                crossingLocations[crossingsFound] = i;
+                crossingsFound++;
+                if(crossingsFound >= 5) {
+                    break;
+                }
+            }
+        }
+        if(crossingsFound < 5) {
+            return null;
+        }
+
+        double stepRegularity = 0, strideRegularity = 0;
+        int strideIndex = 0;
+        for(int i = crossingLocations[1]; i <= crossingLocations[2]; i++) {
+            if(autocorrelated[i] > stepRegularity) {
+                stepRegularity = autocorrelated[i];
+            }
+        }
+        for(int i = crossingLocations[3]; i <= crossingLocations[4]; i++) {
+            if(autocorrelated[i] > strideRegularity) {
+                strideRegularity = autocorrelated[i];
+                strideIndex = i;
+            }
+        }
+
+        double cadence = GaitAnalyser.cadence(eventsDurationNano, strideIndex, bufferSize);
+        double stepSymmetry = stepRegularity / strideRegularity;
+
+        return new GaitParams(absoluteStartTimeMillisec, stepRegularity, strideRegularity, stepSymmetry, cadence);
+    }
+
+    /**
+     * Estimates cadence alone, as GaitAnalyser.analyseCadence() does.
+     *
+     * @param absoluteStartTimeMillisec The system time when recording started for this accelerometry block.
+     * @param bufferSize Number of valid entries in each array
+     * @param xOriginal Array of X acceleration values
+     * @param yOriginal Array of Y acceleration values
+     * @param zOriginal Array of Z acceleration values
+     * @param tOriginal Array of timestamps in nanoseconds, relative to the first event.
+     * @return The gait parameters for this block, with NaN regularity and symmetry, or null if the estimator doesn't find walking.
+     */
+    public GaitParams analyseCadence(long absoluteStartTimeMillisec, int bufferSize, float[] xOriginal, float[] yOriginal, float[] zOriginal, float[] tOriginal) {
+        lags = 0;
+        resample(bufferSize, xOriginal, yOriginal, zOriginal, tOriginal);
+
+        StreamingCadenceEstimator estimator = estimateSteps();
+        if(!estimator.isWalking()) {
+            return null;
+        }
+        return new GaitParams(absoluteStartTimeMillisec, Double.NaN, Double.NaN, Double.NaN, estimator.getCadence());
+    }
+
+    /**
+     * Finds the time of each step in the block from the last call to analyse() or analyseCadence(),
+     * as GaitAnalyser.getStepTimes() does.
+     * @param absoluteStartTimeMillisec The system time when recording started for the block
+     * @return Step times (msec since epoch), in order
+     */
+    public long[] getStepTimes(long absoluteStartTimeMillisec) {
+        long[] samples = estimateSteps().getStepSamples();
+        double sampleMillisec = durationNanosec / size / 1000000L;
+        long[] times = new long[samples.length];
+        for(int i = 0; i < samples.length; i++) {
+            times[i] = absoluteStartTimeMillisec + Math.round(samples[i] * sampleMillisec);
+        }
+        return times;
+    }
+
+    /**
+     * Runs a StreamingCadenceEstimator over the projection onto gravity of the last block resampled,
+     * unless that's already been done. See GaitAnalyser.estimateSteps().
+     */
+    private StreamingCadenceEstimator estimateSteps() {
+        if(stepEstimator != null) {
+            return stepEstimator;
+        }
+        double avgX = sum(xNormalised, size);
+        double avgY = sum(yNormalised, size);
+        double avgZ = sum(zNormalised, size);
+        double avgMag = Math.sqrt((avgX*avgX)+(avgY*avgY)+(avgZ*avgZ));
+        float gravityX = (float) (avgX / avgMag);
+        float gravityY = (float) (avgY / avgMag);
+        float gravityZ = (float) (avgZ / avgMag);
+
+        stepEstimator = new StreamingCadenceEstimator(size / (durationNanosec / 1000000000L));
+        for(int i = 0; i < size; i++) {
+            stepEstimator.addSample(xNormalised[i] * gravityX + yNormalised[i] * gravityY + zNormalised[i] * gravityZ);
+        }
+        return stepEstimator;
+    }
+
+    /**
+     * Resamples a block to regular intervals into xNormalised, yNormalised and zNormalised.
+     * @return Duration of the block (nanoseconds)
+     */
+    private double resample(int bufferSize, float[] xOriginal, float[] yOriginal, float[] zOriginal, float[] tOriginal) {
+        ensureCapacity(bufferSize);
+        size = bufferSize;
+        stepEstimator = null;
+
+        float t0 = tOriginal[0];
+        double eventsDurationNano = tOriginal[bufferSize - 1] - t0;
+
+        // Resample to regular intervals. Same interpolation as GaitAnalyser, so the results match it.
+        xNormalised[0] = xOriginal[0];
+        yNormalised[0] = yOriginal[0];
+        zNormalised[0] = zOriginal[0];
+        xNormalised[bufferSize - 1] = xOriginal[bufferSize - 1];
+        yNormalised[bufferSize - 1] = yOriginal[bufferSize - 1];
+        zNormalised[bufferSize - 1] = zOriginal[bufferSize - 1];
+
+        int indexOfRecordAfterI = 1;
+        for(int i = 1; i < bufferSize - 1; i++) {
+            float tNormalised = (float) ((i * eventsDurationNano) / bufferSize);
+            while(tNormalised > tOriginal[indexOfRecordAfterI] - t0) {
+                indexOfRecordAfterI++;
+            }
+            float after = tOriginal[indexOfRecordAfterI] - t0;
+            float before = tOriginal[indexOfRecordAfterI - 1] - t0;
+            float proportion1 = (tNormalised - after) / (after - before);
+            float proportion2 = 1 - proportion1;
+
+            xNormalised[i] = (xOriginal[indexOfRecordAfterI - 1] * proportion1) + (xOriginal[indexOfRecordAfterI] * proportion2);
+            yNormalised[i] = (yOriginal[indexOfRecordAfterI - 1] * proportion1) + (yOriginal[indexOfRecordAfterI] * proportion2);
+            zNormalised[i] = (zOriginal[indexOfRecordAfterI - 1] * proportion1) + (zOriginal[indexOfRecordAfterI] * proportion2);
+        }
+        durationNanosec = eventsDurationNano;
+        return eventsDurationNano;
+    }
+
+    /**
+     * @return A copy of the resampled Z acceleration from the last call to analyse(), as GaitAnalyser.getVerticalSignal() gives.
+     */
+    public float[] getVerticalSignal() {
+        return Arrays.copyOf(zNormalised, size);
+    }
+
+    /**
+     * @return A copy of the autocorrelation from the last call to analyse(). Only the first half is computed.
+     */
+    public float[] getAutocorrelation() {
+        return Arrays.copyOf(autocorrelated, lags);
+    }
+
+    /**
+     * Autocorrelation of the first n values of input, for lags 0 to lags - 1. Matches GaitAnalyser.autocorrelate().
+     * The input is centred in place.
+     */
+    static void autocorrelate(float[] input, int n, float[] output, int lags) {
+        float mean = (float) (sum(input, n) / n);
+        for(int i = 0; i < n; i++) {
+            input[i] -= mean;
+        }
+        double variance = dot(input, 0, input, 0, n) / (double) n;
+
+        for(int lag = 0; lag < lags; lag++) {
+            // Divide by the number of elements which overlapped at this time lag.
+            output[lag] = (float) (dot(input, lag, input, 0, n - lag) / variance / (n - lag));
+        }
+    }
+
+    /**
+     * Dot product of a[aOffset..aOffset+length) and b[bOffset..bOffset+length).
+     * Four independent partial sums let the multiply-adds overlap instead of waiting on each other.
+     */
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for(; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for(; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Sum of the first n values, accumulated in double since it's only done a few times per block.
+     */
+    static double sum(float[] values, int n) {
+        double total = 0;
+        for(int i = 0; i < n; i++) {
+            total += values[i];
+        }
+        return total;
+    }
+
+    private void ensureCapacity(int bufferSize) {
+        if(xNormalised.length < bufferSize) {
+            xNormalised = new float[bufferSize];
+            yNormalised = new float[bufferSize];
+            zNormalised = new float[bufferSize];
+            vertical = new float[bufferSize];
+            autocorrelated = new float[bufferSize];
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.mcirony.strideminder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams the contents of the gait parameter database into the compact GaitExportWriter format.
+ * Tables are read a page at a time, so memory use doesn't depend on how much history there is.
+ */
+public class GaitDataExporter {
+    static final int PAGE_ROWS = 1000;
+    static final String[] TABLES = {GaitParamsDbAdapter.RAW_TABLE, GaitParamsDbAdapter.HOURLY_TABLE,
+            GaitParamsDbAdapter.DAILY_TABLE, GaitParamsDbAdapter.MONTHLY_TABLE};
+
+    /**
+     * Exports every row of the raw and rollup tables.
+     * @param db An open database
+     * @param out Stream to write to. Flushed but not closed.
+     * @return Number of rows exported
+     */
+    public static long export(GaitParamsDbAdapter db, OutputStream out) throws IOException {
+        GaitExportWriter writer = new GaitExportWriter(out);
+        GaitParamsPage page = new GaitParamsPage(PAGE_ROWS, 0);
+        for(String table : TABLES) {
+            writer.beginTable(table);
+            page.reset(0);
+            while(db.readPage(table, Long.MAX_VALUE, page)) {
+                writer.write(page);
+            }
+            writer.endTable();
+        }
+        writer.finish();
+        return writer.getRowsWritten();
+    }
+}
@@ -0,0 +1,219 @@
+package com.mcirony.strideminder;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads files written by GaitExportWriter, one table at a time, into GaitParamsPages.
+ * Only one block is held in memory at once. Row IDs in the pages are row numbers within the table, starting at 1.
+ * This class has no Android dependencies, so analysis code can use it directly.
+ *
+ * Typical use:
+ *     GaitExportReader reader = new GaitExportReader(in);
+ *     GaitParamsPage page = new GaitParamsPage(1000, 0);
+ *     String table;
+ *     while((table = reader.nextTable()) != null) {
+ *         while(reader.readPage(page)) { ... }
+ *     }
+ */
+public class GaitExportReader {
+    private final DataInputStream in;
+    private final double[] quanta = new double[4];
+    private final Inflater inflater = new Inflater();
+
+    // The current decoded block
+    private final long[] timestamps = new long[GaitExportWriter.BLOCK_ROWS];
+    private final double[][] columns = new double[4][GaitExportWriter.BLOCK_ROWS];
+    private int blockRows;
+    private int blockPosition;
+
+    private byte[] raw = new byte[0];
+    private byte[] compressed = new byte[0];
+    private int rawPosition;
+    private int rawLength;
+
+    private boolean inTable;
+    private boolean atEnd;
+    private long tableRow;
+
+    /**
+     * Reads and checks the file header.
+     * @param in Stream to read from. Buffering it is a good idea.
+     * @throws IOException If the stream isn't a gait export, or is from a newer version.
+     */
+    public GaitExportReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        if(this.in.readInt() != GaitExportWriter.MAGIC) {
+            throw new IOException("Not a gait export file");
+        }
+        int version = this.in.readUnsignedByte();
+        if(version != GaitExportWriter.VERSION) {
+            throw new IOException("Unsupported gait export version " + version);
+        }
+        for(int i = 0; i < quanta.length; i++) {
+            quanta[i] = this.in.readDouble();
+        }
+    }
+
+    /**
+     * Moves on to the next table, skipping anything left unread in the current one.
+     * @return The table's name, or null at the end of the file.
+     */
+    public String nextTable() throws IOException {
+        while(inTable) {
+            blockPosition = blockRows;
+            if(!nextBlock()) {
+                break;
+            }
+        }
+        if(atEnd) {
+            return null;
+        }
+
+        int tag = in.readUnsignedByte();
+        if(tag == GaitExportWriter.TAG_END) {
+            atEnd = true;
+            return null;
+        }
+        if(tag != GaitExportWriter.TAG_TABLE) {
+            throw new IOException("Expected a table, found tag " + tag);
+        }
+        inTable = true;
+        tableRow = 0;
+        blockRows = blockPosition = 0;
+        return in.readUTF();
+    }
+
+    /**
+     * Fills a page with the next rows of the current table.
+     * @param page Page to fill. Its previous contents are replaced.
+     * @return True if any rows were read, false at the end of the table.
+     */
+    public boolean readPage(GaitParamsPage page) throws IOException {
+        page.size = 0;
+        while(page.size < page.capacity()) {
+            if(blockPosition == blockRows && !nextBlock()) {
+                break;
+            }
+            int n = Math.min(page.capacity() - page.size, blockRows - blockPosition);
+            for(int i = 0; i < n; i++) {
+                int r = blockPosition + i;
+                page.add(timestamps[r], ++tableRow, columns[0][r], columns[1][r], columns[2][r], columns[3][r]);
+            }
+            blockPosition += n;
+        }
+        return page.size > 0;
+    }
+
+    /**
+     * Reads and decodes the next block of the current table.
+     * @return False if the table has ended.
+     */
+    private boolean nextBlock() throws IOException {
+        if(!inTable) {
+            return false;
+        }
+        int tag = in.readUnsignedByte();
+        if(tag == GaitExportWriter.TAG_END_TABLE) {
+            inTable = false;
+            blockRows = blockPosition = 0;
+            return false;
+        }
+        if(tag != GaitExportWriter.TAG_BLOCK) {
+            throw new IOException("Expected a block, found tag " + tag);
+        }
+
+        int rows = (int) readVarint();
+        rawLength = (int) readVarint();
+        int compressedLength = (int) readVarint();
+        if(rows <= 0 || rows > GaitExportWriter.BLOCK_ROWS) {
+            throw new IOException("Bad block row count " + rows);
+        }
+        if(compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        if(raw.length < rawLength) {
+            raw = new byte[rawLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while(inflated < rawLength) {
+                int n = inflater.inflate(raw, inflated, rawLength - inflated);
+                if(n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated block");
+                }
+                inflated += n;
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt block: " + e.getMessage());
+        }
+
+        rawPosition = 0;
+        long previous = 0;
+        for(int i = 0; i < rows; i++) {
+            previous += unzigzag(getVarint());
+            timestamps[i] = previous;
+        }
+        for(int c = 0; c < 4; c++) {
+            long previousQ = 0;
+            for(int i = 0; i < rows; i++) {
+                previousQ += unzigzag(getVarint());
+                columns[c][i] = dequantise(previousQ, quanta[c]);
+            }
+        }
+
+        blockRows = rows;
+        blockPosition = 0;
+        return true;
+    }
+
+    static double dequantise(long q, double quantum) {
+        if(q == GaitExportWriter.Q_NAN) {
+            return Double.NaN;
+        } else if(q == GaitExportWriter.Q_POSITIVE_INFINITY) {
+            return Double.POSITIVE_INFINITY;
+        } else if(q == GaitExportWriter.Q_NEGATIVE_INFINITY) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return q * quantum;
+    }
+
+    static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private long getVarint() throws IOException {
+        long v = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            if(rawPosition >= rawLength) {
+                throw new EOFException("Block ended mid-value");
+            }
+            byte b = raw[rawPosition++];
+            v |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private long readVarint() throws IOException {
+        long v = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,72 @@
+package com.mcirony.strideminder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Exports the gait parameter database to external storage in the background.
+ * Files go to strideminder_exports/ and can be read with GaitExportReader.
+ */
+public class GaitExportService extends IntentService {
+    static final String EXPORT_DIRECTORY = "strideminder_exports";
+
+    public GaitExportService() {
+        super("GaitExportService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if(!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            showToast("Couldn't export: external storage isn't available.");
+            return;
+        }
+
+        File dir = new File(Environment.getExternalStorageDirectory(), EXPORT_DIRECTORY);
+        dir.mkdirs();
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH'H'mm'M'ss'S'");
+        File output = new File(dir, "gait_" + df.format(new Date()) + ".smgx");
+
+        GaitParamsDbAdapter db = new GaitParamsDbAdapter(getApplicationContext());
+        db.open();
+        try {
+            long start = System.currentTimeMillis();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 65536);
+            long rows;
+            try {
+                rows = GaitDataExporter.export(db, out);
+            } finally {
+                out.close();
+            }
+            Log.i("StrideMinder", "Exported " + rows + " rows to " + output + " (" + output.length() + " bytes) in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            showToast("Exported " + rows + " rows to " + output.getName());
+        } catch(IOException e) {
+            output.delete();
+            showToast("Couldn't export: " + e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+
+    private void showToast(final String message) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            public void run() {
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+}
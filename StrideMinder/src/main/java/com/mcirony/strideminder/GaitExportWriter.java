@@ -0,0 +1,220 @@
+package com.mcirony.strideminder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gait parameter rows to a compact, compressed columnar file. Read it back with GaitExportReader.
+ *
+ * Rows are collected into blocks of up to BLOCK_ROWS, so memory use is fixed however much is exported.
+ * Within a block each column is stored separately: timestamps as differences from the previous row, and
+ * each gait parameter quantised to a fixed step (QUANTA) and stored as the difference from the previous
+ * quantised value. Every number is written as a zigzag varint, so the small, steady differences typical of
+ * this data mostly take one or two bytes, and the block is then deflated.
+ *
+ * File layout:
+ *     int MAGIC, byte VERSION, 4 doubles (quantum of each gait parameter column)
+ *     for each table: byte TAG_TABLE, UTF table name,
+ *         for each block: byte TAG_BLOCK, varint row count, varint raw length, varint compressed length, deflated bytes
+ *         byte TAG_END_TABLE
+ *     byte TAG_END
+ *
+ * Infinite and NaN values are kept exactly, using reserved quantised values. NaN is how a gait parameter
+ * that wasn't measured (NULL in the database, e.g. regularity in cadence-only rows) is exported.
+ * This class has no Android dependencies.
+ */
+public class GaitExportWriter {
+    public static final int MAGIC = 0x534D4758;    // "SMGX"
+    public static final int VERSION = 1;
+    public static final int BLOCK_ROWS = 4096;
+
+    static final int TAG_END = 0;
+    static final int TAG_TABLE = 1;
+    static final int TAG_BLOCK = 2;
+    static final int TAG_END_TABLE = 3;
+
+    /**
+     * Quantisation steps for step regularity, stride regularity, stride symmetry and cadence.
+     * Regularities are correlation coefficients, so four decimal places is well within their noise;
+     * cadence is kept to a hundredth of a stride per minute.
+     */
+    static final double[] QUANTA = {0.0001, 0.0001, 0.0001, 0.01};
+
+    // Reserved quantised values for non-finite inputs. Finite values are clamped well inside these.
+    static final long Q_NAN = Long.MIN_VALUE;
+    static final long Q_NEGATIVE_INFINITY = Long.MIN_VALUE + 1;
+    static final long Q_POSITIVE_INFINITY = Long.MAX_VALUE;
+    static final long Q_LIMIT = 1L << 53;
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    // Rows waiting to be written as a block
+    private final long[] timestamps = new long[BLOCK_ROWS];
+    private final double[][] columns = new double[4][BLOCK_ROWS];
+    private int rows;
+
+    // Reusable encoding buffers. A row is at most 5 varints of 10 bytes.
+    private final byte[] raw = new byte[BLOCK_ROWS * 50];
+    private byte[] compressed = new byte[BLOCK_ROWS * 50 + 1024];
+    private int rawLength;
+
+    private boolean inTable;
+    private long rowsWritten;
+
+    /**
+     * Writes the file header.
+     * @param out Stream to write to. Not closed by finish(); buffering it is a good idea.
+     */
+    public GaitExportWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        for(double q : QUANTA) {
+            this.out.writeDouble(q);
+        }
+    }
+
+    /**
+     * Starts a new table section. Any table already in progress is ended first.
+     * @param name Table name, e.g. GaitParamsDbAdapter.RAW_TABLE
+     */
+    public void beginTable(String name) throws IOException {
+        if(inTable) {
+            endTable();
+        }
+        out.writeByte(TAG_TABLE);
+        out.writeUTF(name);
+        inTable = true;
+    }
+
+    /**
+     * Adds one row to the current table. Rows should be in timestamp order for the best compression.
+     */
+    public void write(long timestamp, double stepRegularity, double strideRegularity, double strideSymmetry, double cadence) throws IOException {
+        timestamps[rows] = timestamp;
+        columns[0][rows] = stepRegularity;
+        columns[1][rows] = strideRegularity;
+        columns[2][rows] = strideSymmetry;
+        columns[3][rows] = cadence;
+        rows++;
+        if(rows == BLOCK_ROWS) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Adds every row in a page to the current table.
+     */
+    public void write(GaitParamsPage page) throws IOException {
+        for(int i = 0; i < page.size; i++) {
+            write(page.timestamps[i], page.stepRegularity[i], page.strideRegularity[i], page.strideSymmetry[i], page.cadence[i]);
+        }
+    }
+
+    /**
+     * Writes out any rows still waiting and closes the current table section.
+     */
+    public void endTable() throws IOException {
+        flushBlock();
+        out.writeByte(TAG_END_TABLE);
+        inTable = false;
+    }
+
+    /**
+     * Ends the current table (if any) and writes the end-of-file marker. The underlying stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if(inTable) {
+            endTable();
+        }
+        out.writeByte(TAG_END);
+        out.flush();
+        deflater.end();
+    }
+
+    /**
+     * @return Total number of rows written so far.
+     */
+    public long getRowsWritten() {
+        return rowsWritten + rows;
+    }
+
+    private void flushBlock() throws IOException {
+        if(rows == 0) {
+            return;
+        }
+
+        rawLength = 0;
+        long previous = 0;
+        for(int i = 0; i < rows; i++) {
+            putVarint(zigzag(timestamps[i] - previous));
+            previous = timestamps[i];
+        }
+        for(int c = 0; c < 4; c++) {
+            double quantum = QUANTA[c];
+            long previousQ = 0;
+            for(int i = 0; i < rows; i++) {
+                long q = quantise(columns[c][i], quantum);
+                putVarint(zigzag(q - previousQ));
+                previousQ = q;
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while(!deflater.finished()) {
+            if(compressedLength == compressed.length) {
+                byte[] bigger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, bigger, 0, compressedLength);
+                compressed = bigger;
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        out.writeByte(TAG_BLOCK);
+        writeVarint(out, rows);
+        writeVarint(out, rawLength);
+        writeVarint(out, compressedLength);
+        out.write(compressed, 0, compressedLength);
+
+        rowsWritten += rows;
+        rows = 0;
+    }
+
+    static long quantise(double value, double quantum) {
+        if(Double.isNaN(value)) {
+            return Q_NAN;
+        } else if(value == Double.POSITIVE_INFINITY) {
+            return Q_POSITIVE_INFINITY;
+        } else if(value == Double.NEGATIVE_INFINITY) {
+            return Q_NEGATIVE_INFINITY;
+        }
+        long q = Math.round(value / quantum);
+        return Math.max(-Q_LIMIT, Math.min(Q_LIMIT, q));
+    }
+
+    static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private void putVarint(long v) {
+        while((v & ~0x7FL) != 0) {
+            raw[rawLength++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        raw[rawLength++] = (byte) v;
+    }
+
+    static void writeVarint(DataOutputStream out, long v) throws IOException {
+        while((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+}
@@ -0,0 +1,28 @@
+package com.mcirony.strideminder;
+
+/**
+ * The four gait parameters computed for one block of accelerometry, plus the time the block started.
+ * This is the same set of values stored in each row of GaitParamsDbAdapter's tables.
+ */
+public class GaitParams {
+    public final long timestamp;
+    public final double stepRegularity;
+    public final double strideRegularity;
+    public final double strideSymmetry;
+    public final double cadence;
+
+    /**
+     * @param timestamp Start time of the block (msec since epoch)
+     * @param stepRegularity Height of the first non-trivial autocorrelation peak
+     * @param strideRegularity Height of the second non-trivial autocorrelation peak
+     * @param strideSymmetry Step regularity divided by stride regularity
+     * @param cadence Strides per minute
+     */
+    public GaitParams(long timestamp, double stepRegularity, double strideRegularity, double strideSymmetry, double cadence) {
+        this.timestamp = timestamp;
+        this.stepRegularity = stepRegularity;
+        this.strideRegularity = strideRegularity;
+        this.strideSymmetry = strideSymmetry;
+        this.cadence = cadence;
+    }
+}
@@ -0,0 +1,111 @@
+package com.mcirony.strideminder;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Handler;
+
+/**
+ * Passes newly computed gait parameters from the processing threads straight to anything on screen,
+ * without going through the database.
+ *
+ * Each subscriber has a one-value mailbox. Publishing puts the new value in every mailbox and posts the
+ * subscriber's delivery to its Handler only if the mailbox was empty, so a subscriber that falls behind
+ * is handed just the latest value when it catches up, and never more than one delivery is queued for it.
+ * Publishing allocates nothing: the subscriber list is a copy-on-write array and each subscription is
+ * its own Runnable.
+ */
+public class GaitParamsChannel {
+
+    /**
+     * Receives gait parameters on the subscriber's Handler thread.
+     */
+    public interface Listener {
+        void onGaitParams(GaitParams params);
+    }
+
+    /**
+     * One subscriber's mailbox. Returned by subscribe() so it can be passed back to unsubscribe().
+     */
+    public static class Subscription implements Runnable {
+        private final Listener listener;
+        private final Handler handler;
+        private final AtomicReference<GaitParams> latest = new AtomicReference<GaitParams>();
+        private volatile boolean active = true;
+
+        Subscription(Listener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler;
+        }
+
+        void offer(GaitParams params) {
+            if(latest.getAndSet(params) == null) {
+                handler.post(this);
+            }
+        }
+
+        /**
+         * Delivers the latest value. Runs on the subscriber's Handler thread.
+         */
+        public void run() {
+            GaitParams params = latest.getAndSet(null);
+            if(params != null && active) {
+                listener.onGaitParams(params);
+            }
+        }
+    }
+
+    private static final GaitParamsChannel instance = new GaitParamsChannel();
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * @return The app-wide channel that MoeNilssenAccelProcessor publishes to.
+     */
+    public static GaitParamsChannel getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts delivering new gait parameters to a listener.
+     * @param listener Listener to call
+     * @param handler Handler for the thread to call it on, usually one created on the UI thread
+     * @return The subscription, to pass to unsubscribe()
+     */
+    public synchronized Subscription subscribe(Listener listener, Handler handler) {
+        Subscription s = new Subscription(listener, handler);
+        Subscription[] bigger = new Subscription[subscriptions.length + 1];
+        System.arraycopy(subscriptions, 0, bigger, 0, subscriptions.length);
+        bigger[subscriptions.length] = s;
+        subscriptions = bigger;
+        return s;
+    }
+
+    /**
+     * Stops delivering to a subscriber. Nothing more is delivered once this returns, even if a delivery was already queued.
+     * @param s Subscription returned by subscribe()
+     */
+    public synchronized void unsubscribe(Subscription s) {
+        s.active = false;
+        s.handler.removeCallbacks(s);
+        for(int i = 0; i < subscriptions.length; i++) {
+            if(subscriptions[i] == s) {
+                Subscription[] smaller = new Subscription[subscriptions.length - 1];
+                System.arraycopy(subscriptions, 0, smaller, 0, i);
+                System.arraycopy(subscriptions, i + 1, smaller, i, smaller.length - i);
+                subscriptions = smaller;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands new gait parameters to every subscriber. Safe to call from any thread.
+     * @param params Parameters just computed
+     */
+    public void publish(GaitParams params) {
+        Subscription[] current = subscriptions;
+        for(int i = 0; i < current.length; i++) {
+            current[i].offer(params);
+        }
+    }
+}
@@ -1,14 +1,13 @@
 package com.mcirony.strideminder;
 
-import java.util.Calendar;
-import java.util.Date;
-
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -18,20 +17,37 @@ import android.util.Log;
  * The parameters are written in this form to RAW_TABLE.
  * At the end of every hour, they're averaged out and written as a single data point to HOURLY_TABLE.
  * Likewise, at the end of every day and every month, the values are averaged out and written to DAILY_TABLE and MONTHLY_TABLE.
+ * The rollup tables can also be regenerated from RAW_TABLE at any time with rebuildRollups().
+ *
+ * Alongside each walking block's parameters, the time of every step in it goes into STEP_EVENTS_TABLE
+ * (see insertStepEvents()), so step counts and walks can be looked up at finer grain than ten seconds
+ * without re-analysing anything.
+ *
+ * Consecutive walking blocks are also merged into bouts in BOUTS_TABLE as they're inserted, each with its start, end
+ * and running totals of the gait parameters. Questions about walking (how much, how long, how well) can be answered
+ * from a few hundred bouts instead of tens of thousands of raw rows; see getWalkingBouts(), getWalkingSummary()
+ * and getWalkingAverages().
  */
 public class GaitParamsDbAdapter {
 
     private final Context context;
+    private final String databaseName;
+    private final TimeBuckets buckets = TimeBuckets.getInstance();
     private DatabaseHelper dbhelper;
     private SQLiteDatabase database;
 
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 7;
 
     private static final String DATABASE_NAME = "data";
     public static final String RAW_TABLE = "gaitparamsraw";
     public static final String HOURLY_TABLE = "gaitparamshourly";
     public static final String DAILY_TABLE = "gaitparamsdaily";
     public static final String MONTHLY_TABLE = "gaitparamsmonthly";
+    private static final String STATE_TABLE = "gaitparamsstate";
+    public static final String STEP_EVENTS_TABLE = "step_events";
+    public static final String BOUTS_TABLE = "walking_bouts";
+    /** BOUTS_TABLE with averages in place of totals, laid out like the gait parameter tables so readPage() can read it */
+    public static final String BOUTS_VIEW = "walking_bouts_averages";
 
     public static final String KEY_ROWID = "_id";
     public static final String KEY_TIMESTAMP = "timestamp";
@@ -39,38 +55,122 @@ public class GaitParamsDbAdapter {
     public static final String KEY_STRIDE_REGULARITY = "stride_regularity";
     public static final String KEY_STRIDE_SYMMETRY = "step_symmetry";
     public static final String KEY_CADENCE = "cadence";
+    public static final String KEY_WALK_START = "walk_start";
+    public static final String KEY_BOUT_END = "bout_end";
+    public static final String KEY_BLOCKS = "blocks";
+    private static final String KEY_REGULARITY_BLOCKS = "regularity_blocks";
+    private static final String KEY_STEP_REGULARITY_SUM = KEY_STEP_REGULARITY + "_sum";
+    private static final String KEY_STRIDE_REGULARITY_SUM = KEY_STRIDE_REGULARITY + "_sum";
+    private static final String KEY_STRIDE_SYMMETRY_SUM = KEY_STRIDE_SYMMETRY + "_sum";
+    private static final String KEY_CADENCE_SUM = KEY_CADENCE + "_sum";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_VALUE = "value";
+
+    private static final String STATE_ROLLUP_WATERMARK = "rollup_watermark";
 
     private static final String TAG = "GaitParamsDbAdapter";
 
+    /** Steps further apart than this are in separate walks (msec) */
+    public static final long MAX_STEP_GAP_MILLISEC = 3000;
+    /** Length of time each raw row covers (msec) */
+    public static final long BLOCK_MILLISEC = 10000;
+    /** A block starting no more than this after a bout ends carries it on (msec). One block's worth, so a single block
+     *  that didn't look like walking, e.g. stopping to open a door, doesn't split a walk in two. */
+    public static final long MAX_BOUT_GAP_MILLISEC = BLOCK_MILLISEC;
+
 
     /**
      * Database creation SQL statements
      */
     private static final String RAW_TABLE_CREATE =
-            "create table " + RAW_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
-                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double not null, " +
-                    KEY_STRIDE_REGULARITY + " double not null, " + KEY_STRIDE_SYMMETRY + " double not null, " +
+            "create table if not exists " + RAW_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
+                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double, " +
+                    KEY_STRIDE_REGULARITY + " double, " + KEY_STRIDE_SYMMETRY + " double, " +
                     KEY_CADENCE + " double not null);";
     private static final String HOURLY_TABLE_CREATE =
-            "create table " + HOURLY_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
-                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double not null, " +
-                    KEY_STRIDE_REGULARITY + " double not null, " + KEY_STRIDE_SYMMETRY + " double not null, " +
+            "create table if not exists " + HOURLY_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
+                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double, " +
+                    KEY_STRIDE_REGULARITY + " double, " + KEY_STRIDE_SYMMETRY + " double, " +
                     KEY_CADENCE + " double not null);";
     private static final String DAILY_TABLE_CREATE =
-            "create table " + DAILY_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
-                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double not null, " +
-                    KEY_STRIDE_REGULARITY + " double not null, " + KEY_STRIDE_SYMMETRY + " double not null, " +
+            "create table if not exists " + DAILY_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
+                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double, " +
+                    KEY_STRIDE_REGULARITY + " double, " + KEY_STRIDE_SYMMETRY + " double, " +
                     KEY_CADENCE + " double not null);";
     private static final String MONTHLY_TABLE_CREATE =
-            "create table " + MONTHLY_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
-                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double not null, " +
-                    KEY_STRIDE_REGULARITY + " double not null, " + KEY_STRIDE_SYMMETRY + " double not null, " +
+            "create table if not exists " + MONTHLY_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, " +
+                    KEY_TIMESTAMP + " double not null, " + KEY_STEP_REGULARITY + " double, " +
+                    KEY_STRIDE_REGULARITY + " double, " + KEY_STRIDE_SYMMETRY + " double, " +
                     KEY_CADENCE + " double not null);";
+    /**
+     * One row per step. The timestamp is the table's integer primary key, so the rows are stored in time order
+     * and any time range is a scan of one contiguous stretch of the table, with no separate index to consult.
+     * Regularity is the step regularity of the step's block (NULL in cadence-only mode), and walk_start the
+     * time of the first step of the walk it's part of.
+     */
+    private static final String STEP_EVENTS_TABLE_CREATE =
+            "create table if not exists " + STEP_EVENTS_TABLE + " (" + KEY_TIMESTAMP + " integer primary key, " +
+                    KEY_WALK_START + " integer not null, " + KEY_STEP_REGULARITY + " double);";
+    /**
+     * One row per bout of walking, keyed on its start like STEP_EVENTS_TABLE. bout_end is the end of its last block,
+     * and the _sum columns are totals over its blocks, so a bout can be extended without reading its rows back.
+     * Regularity and symmetry are only totalled over the regularity_blocks blocks that measured them.
+     */
+    private static final String BOUTS_TABLE_CREATE =
+            "create table if not exists " + BOUTS_TABLE + " (" + KEY_TIMESTAMP + " integer primary key, " +
+                    KEY_BOUT_END + " integer not null, " + KEY_BLOCKS + " integer not null, " +
+                    KEY_REGULARITY_BLOCKS + " integer not null, " + KEY_STEP_REGULARITY_SUM + " double not null, " +
+                    KEY_STRIDE_REGULARITY_SUM + " double not null, " + KEY_STRIDE_SYMMETRY_SUM + " double not null, " +
+                    KEY_CADENCE_SUM + " double not null);";
+    private static final String BOUTS_VIEW_CREATE =
+            "create view if not exists " + BOUTS_VIEW + " as select " + KEY_TIMESTAMP + " as " + KEY_ROWID + ", " +
+                    KEY_TIMESTAMP + ", " + KEY_BOUT_END + ", " + KEY_BLOCKS + ", " +
+                    KEY_STEP_REGULARITY_SUM + " / nullif(" + KEY_REGULARITY_BLOCKS + ", 0) as " + KEY_STEP_REGULARITY + ", " +
+                    KEY_STRIDE_REGULARITY_SUM + " / nullif(" + KEY_REGULARITY_BLOCKS + ", 0) as " + KEY_STRIDE_REGULARITY + ", " +
+                    KEY_STRIDE_SYMMETRY_SUM + " / nullif(" + KEY_REGULARITY_BLOCKS + ", 0) as " + KEY_STRIDE_SYMMETRY + ", " +
+                    KEY_CADENCE_SUM + " / " + KEY_BLOCKS + " as " + KEY_CADENCE + " from " + BOUTS_TABLE + ";";
+    private static final String STATE_TABLE_CREATE =
+            "create table if not exists " + STATE_TABLE + " (" + KEY_NAME + " text primary key, " +
+                    KEY_VALUE + " integer not null);";
+
+    /**
+     * Gait parameter tables made before version 4 have NOT NULL regularity and symmetry columns,
+     * which cadence-only rows can't satisfy. SQLite can't drop a constraint, so they're copied into new tables.
+     */
+    private static final String[][] NULLABLE_REGULARITY_TABLES_CREATE = {
+            {RAW_TABLE, RAW_TABLE_CREATE},
+            {HOURLY_TABLE, HOURLY_TABLE_CREATE},
+            {DAILY_TABLE, DAILY_TABLE_CREATE},
+            {MONTHLY_TABLE, MONTHLY_TABLE_CREATE}
+    };
+
+    /**
+     * Every range query and rollup is by timestamp, so every table is indexed on it.
+     */
+    private static final String[] TIMESTAMP_INDEXES_CREATE = {
+            "create index if not exists " + RAW_TABLE + "_" + KEY_TIMESTAMP + " on " + RAW_TABLE + " (" + KEY_TIMESTAMP + ");",
+            "create index if not exists " + HOURLY_TABLE + "_" + KEY_TIMESTAMP + " on " + HOURLY_TABLE + " (" + KEY_TIMESTAMP + ");",
+            "create index if not exists " + DAILY_TABLE + "_" + KEY_TIMESTAMP + " on " + DAILY_TABLE + " (" + KEY_TIMESTAMP + ");",
+            "create index if not exists " + MONTHLY_TABLE + "_" + KEY_TIMESTAMP + " on " + MONTHLY_TABLE + " (" + KEY_TIMESTAMP + ");"
+    };
+
+    /**
+     * SQL expressions giving the start of the local hour, day and month a row's timestamp falls into.
+     * These match TimeBuckets: hours are found from the local offset at that instant, days and months
+     * from SQLite's local calendar, which on Android uses the same time zone as Java.
+     */
+    private static final String HOUR_BUCKET =
+            "(CAST(" + KEY_TIMESTAMP + " AS INTEGER) - (CAST(strftime('%s', " + KEY_TIMESTAMP + " / 1000, 'unixepoch', 'localtime') AS INTEGER) * 1000 + " +
+                    "CAST(" + KEY_TIMESTAMP + " AS INTEGER) % 1000) % 3600000)";
+    private static final String DAY_BUCKET =
+            "(CAST(strftime('%s', " + KEY_TIMESTAMP + " / 1000, 'unixepoch', 'localtime', 'start of day', 'utc') AS INTEGER) * 1000)";
+    private static final String MONTH_BUCKET =
+            "(CAST(strftime('%s', " + KEY_TIMESTAMP + " / 1000, 'unixepoch', 'localtime', 'start of month', 'utc') AS INTEGER) * 1000)";
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
-        DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
         }
 
         @Override
@@ -79,23 +179,58 @@ public class GaitParamsDbAdapter {
             db.execSQL(HOURLY_TABLE_CREATE);
             db.execSQL(DAILY_TABLE_CREATE);
             db.execSQL(MONTHLY_TABLE_CREATE);
+            db.execSQL(STATE_TABLE_CREATE);
+            db.execSQL(STEP_EVENTS_TABLE_CREATE);
+            db.execSQL(BOUTS_TABLE_CREATE);
+            db.execSQL(BOUTS_VIEW_CREATE);
+            for(String index : TIMESTAMP_INDEXES_CREATE) {
+                db.execSQL(index);
+            }
         }
 
+        /**
+         * Adds whatever tables and indexes are missing, then regenerates the rollups from the raw data.
+         * Raw data is never dropped.
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + RAW_TABLE);
+                    + newVersion + " and rebuilding rollups");
+            if(oldVersion < 4) {
+                for(String[] table : NULLABLE_REGULARITY_TABLES_CREATE) {
+                    db.execSQL("alter table " + table[0] + " rename to " + table[0] + "_old;");
+                    db.execSQL(table[1]);
+                    db.execSQL("insert into " + table[0] + " select * from " + table[0] + "_old;");
+                    db.execSQL("drop table " + table[0] + "_old;");    // Takes the old timestamp index with it; onCreate() makes a new one
+                }
+            }
             onCreate(db);
+            if(oldVersion < 7) {
+                // Before version 7 a block replayed from the journal could be inserted twice. Keep the first copy.
+                db.execSQL("DELETE FROM " + RAW_TABLE + " WHERE " + KEY_ROWID + " NOT IN (SELECT MIN(" + KEY_ROWID +
+                        ") FROM " + RAW_TABLE + " GROUP BY " + KEY_TIMESTAMP + ")");
+                rebuildBouts(db);
+            }
+            rebuildRollups(db, TimeBuckets.getInstance(), 0);
         }
     }
 
     public GaitParamsDbAdapter(Context c) {
+        this(c, DATABASE_NAME);
+    }
+
+    /**
+     * Uses a database other than the app's own, e.g. so the soak harness doesn't touch real data.
+     * @param c Context to open the database with
+     * @param name Database file name
+     */
+    public GaitParamsDbAdapter(Context c, String name) {
         context = c;
+        databaseName = name;
     }
 
     public GaitParamsDbAdapter open() throws SQLException {
-        dbhelper = new DatabaseHelper(context);
+        dbhelper = new DatabaseHelper(context, databaseName);
         database = dbhelper.getWritableDatabase();
         return this;
     }
@@ -104,7 +239,44 @@ public class GaitParamsDbAdapter {
         database.close();
     }
 
+    /**
+     * Writes one walking block's gait parameters to RAW_TABLE, adds it to its bout in BOUTS_TABLE, and writes any
+     * hourly, daily and monthly averages that the new row completes.
+     * A block that's already in RAW_TABLE, e.g. one replayed from the journal after the process died between
+     * writing it and marking it done, is skipped, so it isn't counted twice.
+     * @param timestamp Start of the block (msec since epoch)
+     * @return Row ID of the new raw row, or -1 if the block was already there
+     */
     public long insertGaitParams(long timestamp, double stepRegularity, double strideRegularity, double strideSymmetry, double cadence) {
+        return insertWalkingBlock(timestamp, stepRegularity, strideRegularity, strideSymmetry, cadence, null);
+    }
+
+    /**
+     * Writes a walking block's gait parameters, as insertGaitParams() does, and its steps, as insertStepEvents() does,
+     * in one transaction, so a crash can't leave the block recorded without its steps.
+     * @param timestamp Start of the block (msec since epoch)
+     * @param stepTimes Step times (msec since epoch), in order, or null to write the gait parameters alone
+     * @return Row ID of the new raw row, or -1 if the block was already there, in which case nothing is written
+     */
+    public long insertWalkingBlock(long timestamp, double stepRegularity, double strideRegularity, double strideSymmetry, double cadence, long[] stepTimes) {
+        database.beginTransaction();
+        try {
+            if(DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " + RAW_TABLE + " WHERE " + KEY_TIMESTAMP + " = " + timestamp, null) > 0) {
+                return -1;
+            }
+            long rowId = insertRawGaitParams(timestamp, stepRegularity, strideRegularity, strideSymmetry, cadence);
+            addToBout(timestamp, stepRegularity, strideRegularity, strideSymmetry, cadence);
+            if(stepTimes != null) {
+                insertStepEvents(stepTimes, stepRegularity);
+            }
+            database.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private long insertRawGaitParams(long timestamp, double stepRegularity, double strideRegularity, double strideSymmetry, double cadence) {
         ContentValues newRecord = new ContentValues();
 
         newRecord.put(KEY_TIMESTAMP, timestamp);
@@ -115,85 +287,335 @@ public class GaitParamsDbAdapter {
     	
     	/*
     	 *  If the last record and the new record straddle an hour, day or month boundary,
-    	 *  calculate averages and put them in the appropriate table.
+    	 *  calculate averages and put them in the appropriate table. Each level is written before the
+    	 *  one above it is averaged, so a day includes its last hour and a month its last day.
     	 */
         long lastTimestamp = getLastTimestamp();
         // Sanity check: Don't start trying to average things if this is the first record in the database.
-        if(lastTimestamp > 0) {
-            if(lastTimestamp < startOfHour(timestamp)) {
-                Cursor c = getRawGaitParams(startOfHour(lastTimestamp), startOfHour(timestamp));
-                double hourStepReg = 0, hourStrideReg = 0, hourStrideSym = 0, hourCadence = 0;
+        if(lastTimestamp > 0 && buckets.crossed(TimeBuckets.HOUR, lastTimestamp, timestamp)) {
+            long lastHourStart = buckets.startOf(TimeBuckets.HOUR, lastTimestamp);
+            insertRollup(HOURLY_TABLE, lastHourStart, getRawGaitParams(lastHourStart, buckets.startOf(TimeBuckets.HOUR, timestamp)));
+
+            if(buckets.crossed(TimeBuckets.DAY, lastTimestamp, timestamp)) {
+                long lastDayStart = buckets.startOf(TimeBuckets.DAY, lastTimestamp);
+                insertRollup(DAILY_TABLE, lastDayStart, getHourlyGaitParams(lastDayStart, buckets.startOf(TimeBuckets.DAY, timestamp)));
+
+                if(buckets.crossed(TimeBuckets.MONTH, lastTimestamp, timestamp)) {
+                    long lastMonthStart = buckets.startOf(TimeBuckets.MONTH, lastTimestamp);
+                    insertRollup(MONTHLY_TABLE, lastMonthStart, getDailyGaitParams(lastMonthStart, buckets.startOf(TimeBuckets.MONTH, timestamp)));
+                }
+            }
+        }
+        return database.insertOrThrow(RAW_TABLE, null, newRecord);
+    }
+
+    /**
+     * Averages the rows of a finished bucket from the level below and writes them as one row.
+     * @param table Rollup table to write to
+     * @param bucketStart Start of the bucket (msec since epoch)
+     * @param c Cursor on the bucket's rows in the level below. It's closed afterwards.
+     */
+    private void insertRollup(String table, long bucketStart, Cursor c) {
+        double[] averages;
+        try {
+            averages = averageGaitParams(c);
+        } finally {
+            c.close();
+        }
+
+        ContentValues record = new ContentValues();
+        record.put(KEY_TIMESTAMP, bucketStart);
+        record.put(KEY_STEP_REGULARITY, averages[0]);
+        record.put(KEY_STRIDE_REGULARITY, averages[1]);
+        record.put(KEY_STRIDE_SYMMETRY, averages[2]);
+        record.put(KEY_CADENCE, averages[3]);
+        database.insertOrThrow(table, null, record);
+    }
+
+    /**
+     * Adds a block to the latest bout starting at or before it, if it carries that bout on, or starts a new bout.
+     * Blocks normally arrive in order, so this extends the newest bout. A block replayed out of order after a restart
+     * still lands in the bout it belongs to, but a new bout it starts isn't joined up with any bout after it.
+     * Only called for blocks not already in RAW_TABLE (see insertWalkingBlock()), so no block is counted twice.
+     */
+    private void addToBout(long timestamp, double stepRegularity, double strideRegularity, double strideSymmetry, double cadence) {
+        long boutStart = -1, boutEnd = -1;
+        Cursor c = database.rawQuery("SELECT " + KEY_TIMESTAMP + ", " + KEY_BOUT_END + " FROM " + BOUTS_TABLE +
+                " WHERE " + KEY_TIMESTAMP + " <= " + timestamp + " ORDER BY " + KEY_TIMESTAMP + " DESC LIMIT 1", null);
+        try {
+            if(c.moveToFirst()) {
+                boutStart = c.getLong(0);
+                boutEnd = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+
+        boolean measured = !Double.isNaN(stepRegularity);
+        if(boutStart < 0 || timestamp > boutEnd + MAX_BOUT_GAP_MILLISEC) {
+            insertBout(database, timestamp, timestamp + BLOCK_MILLISEC, 1, measured ? 1 : 0,
+                    measured ? stepRegularity : 0, measured ? strideRegularity : 0, measured ? strideSymmetry : 0, cadence);
+            return;
+        }
+        database.execSQL("UPDATE " + BOUTS_TABLE + " SET " + KEY_BOUT_END + " = MAX(" + KEY_BOUT_END + ", ?), " +
+                KEY_BLOCKS + " = " + KEY_BLOCKS + " + 1, " + KEY_REGULARITY_BLOCKS + " = " + KEY_REGULARITY_BLOCKS + " + ?, " +
+                KEY_STEP_REGULARITY_SUM + " = " + KEY_STEP_REGULARITY_SUM + " + ?, " +
+                KEY_STRIDE_REGULARITY_SUM + " = " + KEY_STRIDE_REGULARITY_SUM + " + ?, " +
+                KEY_STRIDE_SYMMETRY_SUM + " = " + KEY_STRIDE_SYMMETRY_SUM + " + ?, " +
+                KEY_CADENCE_SUM + " = " + KEY_CADENCE_SUM + " + ? WHERE " + KEY_TIMESTAMP + " = ?",
+                new Object[] {timestamp + BLOCK_MILLISEC, measured ? 1 : 0, measured ? stepRegularity : 0.0,
+                        measured ? strideRegularity : 0.0, measured ? strideSymmetry : 0.0, cadence, boutStart});
+    }
+
+    private static void insertBout(SQLiteDatabase db, long start, long end, int blocks, int regularityBlocks,
+            double stepRegularitySum, double strideRegularitySum, double strideSymmetrySum, double cadenceSum) {
+        ContentValues bout = new ContentValues();
+        bout.put(KEY_TIMESTAMP, start);
+        bout.put(KEY_BOUT_END, end);
+        bout.put(KEY_BLOCKS, blocks);
+        bout.put(KEY_REGULARITY_BLOCKS, regularityBlocks);
+        bout.put(KEY_STEP_REGULARITY_SUM, stepRegularitySum);
+        bout.put(KEY_STRIDE_REGULARITY_SUM, strideRegularitySum);
+        bout.put(KEY_STRIDE_SYMMETRY_SUM, strideSymmetrySum);
+        bout.put(KEY_CADENCE_SUM, cadenceSum);
+        db.insertOrThrow(BOUTS_TABLE, null, bout);
+    }
+
+    /**
+     * Regenerates BOUTS_TABLE from RAW_TABLE in one pass over the raw rows in time order, for databases
+     * made before there were bouts.
+     */
+    private static void rebuildBouts(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + BOUTS_TABLE);
+            Cursor c = db.rawQuery("SELECT " + KEY_TIMESTAMP + ", " + KEY_STEP_REGULARITY + ", " + KEY_STRIDE_REGULARITY + ", " +
+                    KEY_STRIDE_SYMMETRY + ", " + KEY_CADENCE + " FROM " + RAW_TABLE + " ORDER BY " + KEY_TIMESTAMP, null);
+            try {
+                long start = 0, end = 0;
+                int blocks = 0, regularityBlocks = 0;
+                double stepRegularitySum = 0, strideRegularitySum = 0, strideSymmetrySum = 0, cadenceSum = 0;
                 while(c.moveToNext()) {
-                    hourStepReg += c.getDouble(c.getColumnIndex(KEY_STEP_REGULARITY));
-                    hourStrideReg += c.getDouble(c.getColumnIndex(KEY_STRIDE_REGULARITY));
-                    hourStrideSym += c.getDouble(c.getColumnIndex(KEY_STRIDE_SYMMETRY));
-                    hourCadence += c.getDouble(c.getColumnIndex(KEY_CADENCE));
+                    long timestamp = c.getLong(0);
+                    if(blocks > 0 && timestamp > end + MAX_BOUT_GAP_MILLISEC) {
+                        insertBout(db, start, end, blocks, regularityBlocks, stepRegularitySum, strideRegularitySum, strideSymmetrySum, cadenceSum);
+                        blocks = regularityBlocks = 0;
+                        stepRegularitySum = strideRegularitySum = strideSymmetrySum = cadenceSum = 0;
+                    }
+                    if(blocks == 0) {
+                        start = timestamp;
+                    }
+                    end = Math.max(end, timestamp + BLOCK_MILLISEC);
+                    blocks++;
+                    if(!c.isNull(1)) {
+                        regularityBlocks++;
+                        stepRegularitySum += c.getDouble(1);
+                        strideRegularitySum += c.getDouble(2);
+                        strideSymmetrySum += c.getDouble(3);
+                    }
+                    cadenceSum += c.getDouble(4);
+                }
+                if(blocks > 0) {
+                    insertBout(db, start, end, blocks, regularityBlocks, stepRegularitySum, strideRegularitySum, strideSymmetrySum, cadenceSum);
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Return a Cursor on the walking bouts that start in a time period.
+     * @param start Start of time period (msec since epoch)
+     * @param end End of time period (msec since epoch)
+     * @return A Cursor giving each bout's start and end (msec since epoch), number of blocks, and average step regularity,
+     *         stride regularity, stride symmetry (NULL if they weren't measured) and cadence, in time order.
+     */
+    public Cursor getWalkingBouts(long start, long end) {
+        return database.rawQuery("SELECT " + KEY_TIMESTAMP + ", " + KEY_BOUT_END + ", " + KEY_BLOCKS + ", " + KEY_STEP_REGULARITY + ", " +
+                KEY_STRIDE_REGULARITY + ", " + KEY_STRIDE_SYMMETRY + ", " + KEY_CADENCE + " FROM " + BOUTS_VIEW +
+                " WHERE " + KEY_TIMESTAMP + " >= " + start + " AND " + KEY_TIMESTAMP + " < " + end + " ORDER BY " + KEY_TIMESTAMP, null);
+    }
+
+    /**
+     * Sums up the walking in a time period from the bouts that start in it.
+     * @param start Start of time period (msec since epoch)
+     * @param end End of time period (msec since epoch)
+     * @return The number of bouts, the time spent walking (msec, a block's length for each walking block)
+     *         and the length of the longest bout (msec).
+     */
+    public long[] getWalkingSummary(long start, long end) {
+        Cursor c = database.rawQuery("SELECT COUNT(*), IFNULL(SUM(" + KEY_BLOCKS + "), 0), IFNULL(MAX(" + KEY_BOUT_END + " - " +
+                KEY_TIMESTAMP + "), 0) FROM " + BOUTS_TABLE + " WHERE " + KEY_TIMESTAMP + " >= " + start + " AND " + KEY_TIMESTAMP + " < " + end, null);
+        try {
+            c.moveToFirst();
+            return new long[] {c.getLong(0), c.getLong(1) * BLOCK_MILLISEC, c.getLong(2)};
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Averages each gait parameter over all the walking blocks of the bouts that start in a time period.
+     * Bouts are weighted by their number of blocks, so this matches averaging their raw rows.
+     * @param start Start of time period (msec since epoch)
+     * @param end End of time period (msec since epoch)
+     * @return Averages of step regularity, stride regularity, stride symmetry and cadence, NaN where there were no values.
+     */
+    public double[] getWalkingAverages(long start, long end) {
+        Cursor c = database.rawQuery("SELECT SUM(" + KEY_STEP_REGULARITY_SUM + ") / SUM(" + KEY_REGULARITY_BLOCKS + "), SUM(" +
+                KEY_STRIDE_REGULARITY_SUM + ") / SUM(" + KEY_REGULARITY_BLOCKS + "), SUM(" + KEY_STRIDE_SYMMETRY_SUM + ") / SUM(" +
+                KEY_REGULARITY_BLOCKS + "), SUM(" + KEY_CADENCE_SUM + ") / SUM(" + KEY_BLOCKS + ") FROM " + BOUTS_TABLE +
+                " WHERE " + KEY_TIMESTAMP + " >= " + start + " AND " + KEY_TIMESTAMP + " < " + end, null);
+        try {
+            double[] averages = new double[4];
+            c.moveToFirst();
+            for(int i = 0; i < averages.length; i++) {
+                averages[i] = getNullableDouble(c, i);
+            }
+            return averages;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Writes the steps of one walking block to STEP_EVENTS_TABLE, in a single transaction.
+     *
+     * A step less than MAX_STEP_GAP_MILLISEC after the one before it, in this block or the last one, carries on
+     * that step's walk. The analysis doesn't report steps in the first second of a block while its filters settle,
+     * so if the gap from the last block's final step is about two or more of this block's step intervals, the steps
+     * in between are filled in evenly, as StreamingCadenceEstimator does for missed steps within a block.
+     * Steps already in the table, e.g. from a block replayed after a restart, are left as they are.
+     *
+     * @param times Step times (msec since epoch), in order
+     * @param stepRegularity Step regularity of the block, or NaN if it wasn't measured
+     */
+    public void insertStepEvents(long[] times, double stepRegularity) {
+        if(times.length == 0) {
+            return;
+        }
+        database.beginTransaction();
+        try {
+            long previous = -1, walkStart = -1;
+            Cursor c = database.rawQuery("SELECT " + KEY_TIMESTAMP + ", " + KEY_WALK_START + " FROM " + STEP_EVENTS_TABLE +
+                    " WHERE " + KEY_TIMESTAMP + " < " + times[0] + " ORDER BY " + KEY_TIMESTAMP + " DESC LIMIT 1", null);
+            try {
+                if(c.moveToFirst()) {
+                    previous = c.getLong(0);
+                    walkStart = c.getLong(1);
                 }
-                hourStepReg = hourStepReg / c.getCount();
-                hourStrideReg = hourStrideReg / c.getCount();
-                hourStrideSym = hourStrideSym / c.getCount();
-                hourCadence = hourCadence / c.getCount();
-
-                ContentValues hourNewRecord = new ContentValues();
-
-                hourNewRecord.put(KEY_TIMESTAMP, startOfHour(lastTimestamp));
-                hourNewRecord.put(KEY_STEP_REGULARITY, hourStepReg);
-                hourNewRecord.put(KEY_STRIDE_REGULARITY, hourStrideReg);
-                hourNewRecord.put(KEY_STRIDE_SYMMETRY, hourStrideSym);
-                hourNewRecord.put(KEY_CADENCE, hourCadence);
-
-                if(lastTimestamp < startOfDay(timestamp)) {
-                    c = getHourlyGaitParams(startOfDay(lastTimestamp), startOfDay(timestamp));
-                    double dayStepReg = 0, dayStrideReg = 0, dayStrideSym = 0, dayCadence = 0;
-                    while(c.moveToNext()) {
-                        dayStepReg += c.getDouble(c.getColumnIndex(KEY_STEP_REGULARITY));
-                        dayStrideReg += c.getDouble(c.getColumnIndex(KEY_STRIDE_REGULARITY));
-                        dayStrideSym += c.getDouble(c.getColumnIndex(KEY_STRIDE_SYMMETRY));
-                        dayCadence += c.getDouble(c.getColumnIndex(KEY_CADENCE));
+            } finally {
+                c.close();
+            }
+
+            SQLiteStatement insert = database.compileStatement("INSERT OR IGNORE INTO " + STEP_EVENTS_TABLE + " (" +
+                    KEY_TIMESTAMP + ", " + KEY_WALK_START + ", " + KEY_STEP_REGULARITY + ") VALUES (?, ?, ?)");
+            try {
+                long gap = times[0] - previous;
+                if(previous >= 0 && gap < MAX_STEP_GAP_MILLISEC && times.length >= 2) {
+                    double interval = (double) (times[times.length - 1] - times[0]) / (times.length - 1);
+                    long spanned = Math.round(gap / interval);
+                    for(long i = 1; i < spanned; i++) {
+                        insertStepEvent(insert, previous + Math.round((double) i * gap / spanned), walkStart, stepRegularity);
                     }
-                    dayStepReg = dayStepReg / c.getCount();
-                    dayStrideReg = dayStrideReg / c.getCount();
-                    dayStrideSym = dayStrideSym / c.getCount();
-                    dayCadence = dayCadence / c.getCount();
-
-                    ContentValues dayNewRecord = new ContentValues();
-
-                    dayNewRecord.put(KEY_TIMESTAMP, startOfDay(lastTimestamp));
-                    dayNewRecord.put(KEY_STEP_REGULARITY, dayStepReg);
-                    dayNewRecord.put(KEY_STRIDE_REGULARITY, dayStrideReg);
-                    dayNewRecord.put(KEY_STRIDE_SYMMETRY, dayStrideSym);
-                    dayNewRecord.put(KEY_CADENCE, dayCadence);
-
-                    if(lastTimestamp < startOfMonth(timestamp)) {
-                        c = getDailyGaitParams(startOfMonth(lastTimestamp), startOfMonth(timestamp));
-                        double monthStepReg = 0, monthStrideReg = 0, monthStrideSym = 0, monthCadence = 0;
-                        while(c.moveToNext()) {
-                            monthStepReg += c.getDouble(c.getColumnIndex(KEY_STEP_REGULARITY));
-                            monthStrideReg += c.getDouble(c.getColumnIndex(KEY_STRIDE_REGULARITY));
-                            monthStrideSym += c.getDouble(c.getColumnIndex(KEY_STRIDE_SYMMETRY));
-                            monthCadence += c.getDouble(c.getColumnIndex(KEY_CADENCE));
-                        }
-                        monthStepReg = monthStepReg / c.getCount();
-                        monthStrideReg = monthStrideReg / c.getCount();
-                        monthStrideSym = monthStrideSym / c.getCount();
-                        monthCadence = monthCadence / c.getCount();
-
-                        ContentValues monthNewRecord = new ContentValues();
-
-                        monthNewRecord.put(KEY_TIMESTAMP, startOfMonth(lastTimestamp));
-                        monthNewRecord.put(KEY_STEP_REGULARITY, monthStepReg);
-                        monthNewRecord.put(KEY_STRIDE_REGULARITY, monthStrideReg);
-                        monthNewRecord.put(KEY_STRIDE_SYMMETRY, monthStrideSym);
-                        monthNewRecord.put(KEY_CADENCE, monthCadence);
-
-                        database.insertOrThrow(MONTHLY_TABLE, null, monthNewRecord);
+                }
+                for(long time : times) {
+                    if(previous < 0 || time - previous >= MAX_STEP_GAP_MILLISEC) {
+                        walkStart = time;
                     }
-                    database.insertOrThrow(DAILY_TABLE, null, dayNewRecord);
+                    insertStepEvent(insert, time, walkStart, stepRegularity);
+                    previous = time;
                 }
-                database.insertOrThrow(HOURLY_TABLE, null, hourNewRecord);
+            } finally {
+                insert.close();
             }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
-        return database.insertOrThrow(RAW_TABLE, null, newRecord);
+    }
+
+    private static void insertStepEvent(SQLiteStatement insert, long time, long walkStart, double stepRegularity) {
+        insert.bindLong(1, time);
+        insert.bindLong(2, walkStart);
+        if(Double.isNaN(stepRegularity)) {
+            insert.bindNull(3);
+        } else {
+            insert.bindDouble(3, stepRegularity);
+        }
+        insert.executeInsert();
+    }
+
+    /**
+     * Counts the steps in a time period.
+     * @param start Start of time period (msec since epoch)
+     * @param end End of time period (msec since epoch)
+     * @return Number of steps
+     */
+    public long getStepCount(long start, long end) {
+        return DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " + STEP_EVENTS_TABLE +
+                " WHERE " + KEY_TIMESTAMP + " >= " + start + " AND " + KEY_TIMESTAMP + " < " + end, null);
+    }
+
+    /**
+     * Counts the steps in each minute of a time period. Minutes without any steps are left out.
+     * @param start Start of time period (msec since epoch)
+     * @param end End of time period (msec since epoch)
+     * @return A Cursor giving the start of each minute (msec since epoch) and its step count, in time order.
+     */
+    public Cursor getStepCountsPerMinute(long start, long end) {
+        return database.rawQuery("SELECT (" + KEY_TIMESTAMP + " / 60000) * 60000 AS minute, COUNT(*) FROM " + STEP_EVENTS_TABLE +
+                " WHERE " + KEY_TIMESTAMP + " >= " + start + " AND " + KEY_TIMESTAMP + " < " + end +
+                " GROUP BY minute ORDER BY minute", null);
+    }
+
+    /**
+     * Finds the longest continuous walk in a time period. A walk that runs over either end of the period
+     * only counts the part inside it.
+     * @param start Start of time period (msec since epoch)
+     * @param end End of time period (msec since epoch)
+     * @return The times of the walk's first and last steps (msec since epoch) and its number of steps, or null if there were no steps.
+     */
+    public long[] getLongestWalk(long start, long end) {
+        Cursor c = database.rawQuery("SELECT MIN(" + KEY_TIMESTAMP + ") AS first, MAX(" + KEY_TIMESTAMP + ") AS last, COUNT(*) FROM " +
+                STEP_EVENTS_TABLE + " WHERE " + KEY_TIMESTAMP + " >= " + start + " AND " + KEY_TIMESTAMP + " < " + end +
+                " GROUP BY " + KEY_WALK_START + " ORDER BY last - first DESC LIMIT 1", null);
+        try {
+            if(c.moveToFirst()) {
+                return new long[] {c.getLong(0), c.getLong(1), c.getLong(2)};
+            }
+            return null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Averages each gait parameter over a cursor's rows. NULLs are skipped, as SQL's AVG() does, since rows
+     * written in cadence-only mode have no regularity or symmetry.
+     * @return Averages of step regularity, stride regularity, stride symmetry and cadence, NaN (stored as NULL) where there were no values.
+     */
+    private static double[] averageGaitParams(Cursor c) {
+        String[] columns = {KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY, KEY_CADENCE};
+        double[] averages = new double[columns.length];
+        int[] counts = new int[columns.length];
+        while(c.moveToNext()) {
+            for(int i = 0; i < columns.length; i++) {
+                int index = c.getColumnIndex(columns[i]);
+                if(!c.isNull(index)) {
+                    averages[i] += c.getDouble(index);
+                    counts[i]++;
+                }
+            }
+        }
+        for(int i = 0; i < columns.length; i++) {
+            averages[i] = counts[i] > 0 ? averages[i] / counts[i] : Double.NaN;
+        }
+        return averages;
     }
 
     /**
@@ -203,7 +625,7 @@ public class GaitParamsDbAdapter {
      * @return A Cursor giving every record in RAW_TABLE between the specified times.
      */
     public Cursor getRawGaitParams(long start, long end) {
-        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY};
+        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY, KEY_CADENCE};
         String filter = KEY_TIMESTAMP + " BETWEEN " + start + " AND " + end;
         return database.query(RAW_TABLE, cols, filter, null, null, null, null);
     }
@@ -215,7 +637,7 @@ public class GaitParamsDbAdapter {
      * @return A Cursor giving every record in HOURLY_TABLE between the specified times.
      */
     public Cursor getHourlyGaitParams(long start, long end) {
-        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY};
+        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY, KEY_CADENCE};
         String filter = KEY_TIMESTAMP + " BETWEEN " + start + " AND " + end;
         return database.query(HOURLY_TABLE, cols, filter, null, null, null, null);
     }
@@ -227,7 +649,7 @@ public class GaitParamsDbAdapter {
      * @return A Cursor giving every record in DAILY_TABLE between the specified times.
      */
     public Cursor getDailyGaitParams(long start, long end) {
-        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY};
+        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY, KEY_CADENCE};
         String filter = KEY_TIMESTAMP + " BETWEEN " + start + " AND " + end;
         return database.query(DAILY_TABLE, cols, filter, null, null, null, null);
     }
@@ -239,66 +661,174 @@ public class GaitParamsDbAdapter {
      * @return A Cursor giving every record in MONTHLY_TABLE between the specified times.
      */
     public Cursor getMonthlyGaitParams(long start, long end) {
-        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY};
+        String[] cols = {KEY_TIMESTAMP, KEY_STEP_REGULARITY, KEY_STRIDE_REGULARITY, KEY_STRIDE_SYMMETRY, KEY_CADENCE};
         String filter = KEY_TIMESTAMP + " BETWEEN " + start + " AND " + end;
         return database.query(MONTHLY_TABLE, cols, filter, null, null, null, null);
     }
 
     /**
-     * Returns the time of the last entry made in this database.
-     * @return The time of the last entry (msec since epoch)
+     * Reads the next page of rows from a table, in timestamp order, continuing from where the page left off.
+     * Each call fetches at most page.capacity() rows, so a long history can be read without ever holding more
+     * than one page in memory. The query seeks on the timestamp index from the page's last (timestamp, row ID),
+     * so later pages cost no more than the first.
+     *
+     * A typical loop:
+     *     GaitParamsPage page = new GaitParamsPage(500, start);
+     *     while(db.readPage(RAW_TABLE, end, page)) { ... use page.size rows ... }
+     *
+     * @param table RAW_TABLE, HOURLY_TABLE, DAILY_TABLE, MONTHLY_TABLE or BOUTS_VIEW
+     * @param end End of time period (msec since epoch, inclusive)
+     * @param page Page to fill. Its previous contents are replaced.
+     * @return True if any rows were read, false once the range is used up.
      */
-    public long getLastTimestamp() {
-        String[] cols = {KEY_TIMESTAMP};
-        String filter = KEY_TIMESTAMP + " = (SELECT MAX(" + KEY_TIMESTAMP + ") FROM " + RAW_TABLE + ")";
-        Cursor c = database.query(RAW_TABLE, cols, filter, null, null, null, null);
+    public boolean readPage(String table, long end, GaitParamsPage page) {
+        page.size = 0;
+        if(page.exhausted) {
+            return false;
+        }
 
-        if(c.moveToFirst()) {
-            return c.getLong(0);
-        } else {
-            return 0;
+        String after = Long.toString(page.lastTimestamp);
+        String sql = "SELECT " + KEY_TIMESTAMP + ", " + KEY_ROWID + ", " + KEY_STEP_REGULARITY + ", " +
+                KEY_STRIDE_REGULARITY + ", " + KEY_STRIDE_SYMMETRY + ", " + KEY_CADENCE + " FROM " + table +
+                " WHERE " + KEY_TIMESTAMP + " >= ? AND (" + KEY_TIMESTAMP + " > ? OR " + KEY_ROWID + " > ?) AND " +
+                KEY_TIMESTAMP + " <= ? ORDER BY " + KEY_TIMESTAMP + ", " + KEY_ROWID + " LIMIT " + page.capacity();
+        return fillPage(sql, new String[] {after, after, Long.toString(page.lastRowId), Long.toString(end)}, page);
+    }
+
+    /**
+     * Reads the next page of rows from a table in the order they were written, continuing after the page's
+     * last row ID. The gait parameter tables are AUTOINCREMENT, so row IDs are never reused and only go up:
+     * a raw row inserted late with an older timestamp, or a rollup row rewritten by rebuildRollups(), always
+     * comes after every row read before it. That makes the row ID alone a safe watermark for sending changes.
+     *
+     * @param table RAW_TABLE, HOURLY_TABLE, DAILY_TABLE or MONTHLY_TABLE
+     * @param page Page to fill, positioned with GaitParamsPage.seek(). Its previous contents are replaced.
+     * @return True if any rows were read, false once there are no more.
+     */
+    public boolean readPageByRowId(String table, GaitParamsPage page) {
+        page.size = 0;
+        if(page.exhausted) {
+            return false;
+        }
+
+        String sql = "SELECT " + KEY_TIMESTAMP + ", " + KEY_ROWID + ", " + KEY_STEP_REGULARITY + ", " +
+                KEY_STRIDE_REGULARITY + ", " + KEY_STRIDE_SYMMETRY + ", " + KEY_CADENCE + " FROM " + table +
+                " WHERE " + KEY_ROWID + " > ? ORDER BY " + KEY_ROWID + " LIMIT " + page.capacity();
+        return fillPage(sql, new String[] {Long.toString(page.lastRowId)}, page);
+    }
+
+    /**
+     * Runs a page query, which must select timestamp, row ID and the four gait parameters in that order.
+     * NULL gait parameters (not measured, as in cadence-only rows) are read as NaN, not as Cursor's 0.
+     * @return True if any rows were read.
+     */
+    private boolean fillPage(String sql, String[] args, GaitParamsPage page) {
+        Cursor c = database.rawQuery(sql, args);
+        try {
+            while(c.moveToNext()) {
+                page.add(c.getLong(0), c.getLong(1), getNullableDouble(c, 2), getNullableDouble(c, 3),
+                        getNullableDouble(c, 4), getNullableDouble(c, 5));
+            }
+        } finally {
+            c.close();
+        }
+
+        if(page.size < page.capacity()) {
+            page.exhausted = true;
         }
+        return page.size > 0;
+    }
+
+    private static double getNullableDouble(Cursor c, int column) {
+        return c.isNull(column) ? Double.NaN : c.getDouble(column);
+    }
+
+    /**
+     * Regenerates the hourly, daily and monthly tables for everything recorded since the last rebuild.
+     * Cheap enough to run after every import or whenever the collector starts.
+     */
+    public void rebuildRollups() {
+        rebuildRollups(getRollupWatermark());
     }
 
     /**
-     * Returns the start of the hour the given time falls into.
-     * @param time Time in msec since epoch
-     * @return Time of the start of the hour
+     * Regenerates the hourly, daily and monthly tables from the given time onwards.
+     * Use 0 to rebuild everything, or the earliest timestamp of newly imported raw rows.
+     * @param from Earliest time to rebuild (msec since epoch). The whole hour, day and month containing it are rebuilt.
      */
-    private long startOfHour(long time) {
-        Date d = new Date(time);
-        Calendar c = Calendar.getInstance();
-        c.setTime(d);
-        c.set(Calendar.MINUTE, 0);
-        return c.getTimeInMillis();
+    public void rebuildRollups(long from) {
+        rebuildRollups(database, buckets, from);
     }
 
     /**
-     * Returns the start of the day the given time falls into.
-     * @param time Time in msec since epoch
-     * @return Time of the start of the day
+     * @return The latest raw timestamp covered by the last rebuild, or 0 if there hasn't been one.
      */
-    private long startOfDay(long time) {
-        Date d = new Date(time);
-        Calendar c = Calendar.getInstance();
-        c.setTime(d);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        return c.getTimeInMillis();
+    public long getRollupWatermark() {
+        return DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX(" + KEY_VALUE + "), 0) FROM " + STATE_TABLE +
+                " WHERE " + KEY_NAME + " = '" + STATE_ROLLUP_WATERMARK + "'", null);
     }
 
     /**
-     * Returns the start of the month the given time falls into.
-     * @param time Time in msec since epoch
-     * @return Time of the start of the month
+     * Rebuilds each rollup level with one grouped INSERT ... SELECT, all inside a single transaction.
+     * Hours are built from RAW_TABLE, days from HOURLY_TABLE and months from DAILY_TABLE, matching insertGaitParams().
+     * Only completed buckets are built: the hour, day and month holding the newest raw row are still open,
+     * and are left for insertGaitParams() to write when they finish.
      */
-    private long startOfMonth(long time) {
-        Date d = new Date(time);
-        Calendar c = Calendar.getInstance();
-        c.setTime(d);
-        c.set(Calendar.DAY_OF_MONTH, 0);
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        return c.getTimeInMillis();
+    private static void rebuildRollups(SQLiteDatabase db, TimeBuckets buckets, long from) {
+        db.beginTransaction();
+        try {
+            long last = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + KEY_TIMESTAMP + "), 0) FROM " + RAW_TABLE, null);
+            if(last > 0) {
+                long hourFrom = buckets.startOf(TimeBuckets.HOUR, from);
+                long dayFrom = buckets.startOf(TimeBuckets.DAY, hourFrom);
+                long monthFrom = buckets.startOf(TimeBuckets.MONTH, dayFrom);
+
+                rebuildLevel(db, RAW_TABLE, HOURLY_TABLE, HOUR_BUCKET, hourFrom, buckets.startOf(TimeBuckets.HOUR, last));
+                rebuildLevel(db, HOURLY_TABLE, DAILY_TABLE, DAY_BUCKET, dayFrom, buckets.startOf(TimeBuckets.DAY, last));
+                rebuildLevel(db, DAILY_TABLE, MONTHLY_TABLE, MONTH_BUCKET, monthFrom, buckets.startOf(TimeBuckets.MONTH, last));
+
+                db.execSQL("INSERT OR REPLACE INTO " + STATE_TABLE + " (" + KEY_NAME + ", " + KEY_VALUE + ") VALUES ('" +
+                        STATE_ROLLUP_WATERMARK + "', " + last + ")");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces every row of one rollup table from the given time onwards with averages of the level below.
+     * @param source Table to average
+     * @param target Table to rebuild
+     * @param bucketExpression SQL expression giving the target bucket of a source row
+     * @param from Start of the first bucket to rebuild (msec since epoch)
+     * @param end Start of the first bucket not to rebuild (msec since epoch)
+     */
+    private static void rebuildLevel(SQLiteDatabase db, String source, String target, String bucketExpression, long from, long end) {
+        db.execSQL("DELETE FROM " + target + " WHERE " + KEY_TIMESTAMP + " >= " + from);
+        db.execSQL("INSERT INTO " + target + " (" + KEY_TIMESTAMP + ", " + KEY_STEP_REGULARITY + ", " +
+                KEY_STRIDE_REGULARITY + ", " + KEY_STRIDE_SYMMETRY + ", " + KEY_CADENCE + ") " +
+                "SELECT " + bucketExpression + " AS bucket, AVG(" + KEY_STEP_REGULARITY + "), AVG(" + KEY_STRIDE_REGULARITY + "), " +
+                "AVG(" + KEY_STRIDE_SYMMETRY + "), AVG(" + KEY_CADENCE + ") FROM " + source +
+                " WHERE " + KEY_TIMESTAMP + " >= " + from + " AND " + KEY_TIMESTAMP + " < " + end +
+                " GROUP BY bucket");
+    }
+
+    /**
+     * Returns the time of the last entry made in this database.
+     * @return The time of the last entry (msec since epoch)
+     */
+    public long getLastTimestamp() {
+        // MAX on its own is answered from the end of the timestamp index without scanning the table.
+        Cursor c = database.rawQuery("SELECT MAX(" + KEY_TIMESTAMP + ") FROM " + RAW_TABLE, null);
+        try {
+            if(c.moveToFirst() && !c.isNull(0)) {
+                return c.getLong(0);
+            } else {
+                return 0;
+            }
+        } finally {
+            c.close();
+        }
     }
 }
@@ -0,0 +1,103 @@
+package com.mcirony.strideminder;
+
+/**
+ * A fixed-size page of rows from one of GaitParamsDbAdapter's tables, held column by column in primitive arrays.
+ * Gait parameters that weren't measured (NULL in the database) are NaN.
+ *
+ * A page also remembers where it got up to (the timestamp and row ID of its last row), so passing the
+ * same page back to GaitParamsDbAdapter.readPage() fetches the rows that follow it. Reading a whole
+ * history this way uses the same memory whether it covers a day or a year.
+ */
+public class GaitParamsPage {
+    public final long[] timestamps;
+    public final long[] rowIds;
+    public final double[] stepRegularity;
+    public final double[] strideRegularity;
+    public final double[] strideSymmetry;
+    public final double[] cadence;
+
+    /** Number of valid rows in the arrays */
+    public int size;
+
+    // Position of the last row read, to resume after
+    long lastTimestamp;
+    long lastRowId;
+    boolean exhausted;
+
+    /**
+     * @param capacity Maximum number of rows per page
+     * @param start Time to start reading from (msec since epoch, inclusive)
+     */
+    public GaitParamsPage(int capacity, long start) {
+        timestamps = new long[capacity];
+        rowIds = new long[capacity];
+        stepRegularity = new double[capacity];
+        strideRegularity = new double[capacity];
+        strideSymmetry = new double[capacity];
+        cadence = new double[capacity];
+        reset(start);
+    }
+
+    /**
+     * Empties the page and moves it back to the given time, ready to read a different range.
+     * @param start Time to start reading from (msec since epoch, inclusive)
+     */
+    public void reset(long start) {
+        size = 0;
+        lastTimestamp = start;
+        lastRowId = Long.MIN_VALUE;
+        exhausted = false;
+    }
+
+    /**
+     * Empties the page and positions it just after a row read earlier, e.g. from a saved sync watermark.
+     * @param timestamp Timestamp of the last row already read (msec since epoch)
+     * @param rowId Row ID of the last row already read
+     */
+    public void seek(long timestamp, long rowId) {
+        size = 0;
+        lastTimestamp = timestamp;
+        lastRowId = rowId;
+        exhausted = false;
+    }
+
+    /**
+     * @return Timestamp of the last row read into this page, or the start time if nothing has been read yet.
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return Row ID of the last row read into this page.
+     */
+    public long getLastRowId() {
+        return lastRowId;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * @return True once a read has come back short, meaning there are no more rows in the range.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Appends one row. Used by readers filling the page.
+     */
+    void add(long timestamp, long rowId, double stepReg, double strideReg, double strideSym, double cad) {
+        timestamps[size] = timestamp;
+        rowIds[size] = rowId;
+        stepRegularity[size] = stepReg;
+        strideRegularity[size] = strideReg;
+        strideSymmetry[size] = strideSym;
+        cadence[size] = cad;
+        size++;
+        lastTimestamp = timestamp;
+        lastRowId = rowId;
+    }
+}
@@ -0,0 +1,120 @@
+package com.mcirony.strideminder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs GaitSyncUploader when it's cheap to do so: on an unmetered network, or while charging.
+ *
+ * Syncs are scheduled with non-waking alarms, so the device is never woken up just to sync; the alarm
+ * fires the next time something else wakes it. Plugging in the charger also triggers a sync
+ * (see GaitSyncTriggerReceiver). Failed syncs are retried with exponential backoff.
+ * Syncing is off unless the sync_url string resource is set.
+ */
+public class GaitSyncService extends IntentService {
+    static final String PREFS_NAME = "sync";
+    static final String PREF_FAILURES = "sync_failures";
+    static final long SYNC_INTERVAL_MILLISEC = 6 * 3600000L;    // Between successful syncs
+    static final long RECHECK_INTERVAL_MILLISEC = 3600000L;     // Between checks for a suitable network or charger
+
+    private final Random random = new Random();
+
+    public GaitSyncService() {
+        super("GaitSyncService");
+    }
+
+    /**
+     * Schedules a sync if one isn't already pending.
+     * @param context Context to schedule from
+     */
+    public static void scheduleIfNeeded(Context context) {
+        Intent i = new Intent(context, GaitSyncService.class);
+        if(PendingIntent.getService(context, 0, i, PendingIntent.FLAG_NO_CREATE) == null) {
+            schedule(context, SYNC_INTERVAL_MILLISEC);
+        }
+    }
+
+    /**
+     * Schedules the next sync, replacing any already pending.
+     * @param context Context to schedule from
+     * @param delayMillis How long from now to run it (msec)
+     */
+    static void schedule(Context context, long delayMillis) {
+        Intent i = new Intent(context, GaitSyncService.class);
+        PendingIntent pi = PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delayMillis, pi);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String url = getString(R.string.sync_url);
+        if(url == null || url.length() == 0) {
+            return;
+        }
+
+        if(!isGoodTimeToSync()) {
+            schedule(this, RECHECK_INTERVAL_MILLISEC);
+            return;
+        }
+
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        GaitParamsDbAdapter db = new GaitParamsDbAdapter(getApplicationContext());
+        db.open();
+        try {
+            GaitSyncUploader uploader = new GaitSyncUploader(db, prefs, new HttpSyncTransport(new URL(url)));
+            long rows = uploader.sync();
+            prefs.edit().putInt(PREF_FAILURES, 0).commit();
+            schedule(this, SYNC_INTERVAL_MILLISEC);
+            Log.i("StrideMinder", "Synced " + rows + " rows in " + uploader.getBatchesSent() + " batches, "
+                    + uploader.getBytesSent() + " bytes");
+        } catch(IOException e) {
+            int failures = prefs.getInt(PREF_FAILURES, 0) + 1;
+            prefs.edit().putInt(PREF_FAILURES, failures).commit();
+            long delay = GaitSyncUploader.backoffMillis(failures, random);
+            schedule(this, delay);
+            Log.w("StrideMinder", "Sync failed (" + failures + " in a row), retrying in " + (delay / 1000) + " s: " + e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @return True if there's a network connection and it's either unmetered or the device is charging.
+     */
+    private boolean isGoodTimeToSync() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        if(network == null || !network.isConnected()) {
+            return false;
+        }
+
+        boolean unmetered;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            unmetered = !cm.isActiveNetworkMetered();
+        } else {
+            unmetered = network.getType() == ConnectivityManager.TYPE_WIFI || network.getType() == ConnectivityManager.TYPE_ETHERNET;
+        }
+        if(unmetered) {
+            return true;
+        }
+
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
@@ -0,0 +1,16 @@
+package com.mcirony.strideminder;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Starts a sync when the charger is plugged in, since that's the cheapest time to use the radio.
+ */
+public class GaitSyncTriggerReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        context.startService(new Intent(context, GaitSyncService.class));
+    }
+}
@@ -0,0 +1,174 @@
+package com.mcirony.strideminder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+
+import android.content.SharedPreferences;
+
+/**
+ * Uploads new gait parameter rows to the backend in compressed batches.
+ *
+ * For each table the uploader keeps a watermark: the row ID of the last row the backend has accepted.
+ * A sync reads every row written after the watermarks with GaitParamsDbAdapter.readPageByRowId(), packs up
+ * to MAX_BATCH_ROWS rows into one GaitExportWriter batch, and sends it. The watermarks only move once the
+ * transport has accepted the batch, so a failed send is simply retried from the same place next time.
+ *
+ * Row IDs follow the order rows were written in, not their timestamps. So raw rows that arrive late (a
+ * journal replay, or blocks finishing out of order) are still sent, and so are hours, days and months
+ * rewritten by GaitParamsDbAdapter.rebuildRollups(), which get new row IDs. The backend therefore receives
+ * some timestamps more than once, always in the order they were written, and should keep the latest row
+ * for each (device, table, timestamp).
+ */
+public class GaitSyncUploader {
+    public static final int MAX_BATCH_ROWS = 20000;
+    static final int PAGE_ROWS = 1000;
+
+    // Retry delays double with each consecutive failure, within these limits
+    static final long MIN_BACKOFF_MILLISEC = 60000L;
+    static final long MAX_BACKOFF_MILLISEC = 6 * 3600000L;
+
+    static final String PREF_DEVICE_ID = "sync_device_id";
+    static final String PREF_WATERMARK_ID = "sync_watermark_id_";
+    // Watermarks from before sync followed row IDs. Their positions don't carry over, so they're dropped and
+    // everything is sent once more, which the backend's keep-the-latest rule makes harmless.
+    static final String OLD_PREF_WATERMARK_TIMESTAMP = "sync_watermark_timestamp_";
+    static final String OLD_PREF_WATERMARK_ROWID = "sync_watermark_rowid_";
+
+    private final GaitParamsDbAdapter db;
+    private final SharedPreferences prefs;
+    private final SyncTransport transport;
+    private final String deviceId;
+
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(65536);
+    private final GaitParamsPage page = new GaitParamsPage(PAGE_ROWS, 0);
+
+    private long bytesSent;
+    private long batchesSent;
+
+    /**
+     * @param db An open database to upload from
+     * @param prefs Where to keep the watermarks and this device's ID
+     * @param transport Where to send batches
+     */
+    public GaitSyncUploader(GaitParamsDbAdapter db, SharedPreferences prefs, SyncTransport transport) {
+        this.db = db;
+        this.prefs = prefs;
+        this.transport = transport;
+
+        String id = prefs.getString(PREF_DEVICE_ID, null);
+        if(id == null) {
+            id = UUID.randomUUID().toString();
+            prefs.edit().putString(PREF_DEVICE_ID, id).commit();
+        }
+        deviceId = id;
+
+        SharedPreferences.Editor editor = null;
+        for(String table : GaitDataExporter.TABLES) {
+            if(prefs.contains(OLD_PREF_WATERMARK_ROWID + table)) {
+                if(editor == null) {
+                    editor = prefs.edit();
+                }
+                editor.remove(OLD_PREF_WATERMARK_TIMESTAMP + table);
+                editor.remove(OLD_PREF_WATERMARK_ROWID + table);
+            }
+        }
+        if(editor != null) {
+            editor.commit();
+        }
+    }
+
+    /**
+     * Sends every row written since the last successful sync, in as few batches as MAX_BATCH_ROWS allows.
+     * @return Number of rows sent
+     * @throws IOException If a batch couldn't be sent. Batches sent before it stay sent.
+     */
+    public long sync() throws IOException {
+        long total = 0;
+        long rows;
+        while((rows = sendBatch()) > 0) {
+            total += rows;
+        }
+        return total;
+    }
+
+    /**
+     * @return Total compressed bytes accepted by the transport.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return Number of batches accepted by the transport.
+     */
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    /**
+     * Works out how long to wait before retrying after consecutive failures.
+     * The delay doubles with each failure up to MAX_BACKOFF_MILLISEC, and is spread by up to a quarter
+     * either way so that many devices failing together don't all retry together.
+     * @param failures Number of consecutive failed syncs (at least 1)
+     * @param random Source of jitter
+     * @return Delay before the next attempt (msec)
+     */
+    public static long backoffMillis(int failures, Random random) {
+        long delay = MIN_BACKOFF_MILLISEC << Math.min(failures - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF_MILLISEC);
+        return delay + (long) (delay * 0.25 * (random.nextDouble() * 2 - 1));
+    }
+
+    /**
+     * Builds and sends one batch from the current watermarks.
+     * @return Number of rows in the batch, or 0 if there was nothing new.
+     */
+    private long sendBatch() throws IOException {
+        String[] tables = GaitDataExporter.TABLES;
+        long[] watermarks = new long[tables.length];
+
+        batch.reset();
+        GaitExportWriter writer = new GaitExportWriter(batch);
+        long rows = 0;
+
+        for(int t = 0; t < tables.length; t++) {
+            watermarks[t] = prefs.getLong(PREF_WATERMARK_ID + tables[t], 0);
+            if(rows >= MAX_BATCH_ROWS) {
+                continue;    // Batch is full; this table goes in the next one.
+            }
+
+            page.seek(0, watermarks[t]);
+            boolean begun = false;
+            while(rows < MAX_BATCH_ROWS && db.readPageByRowId(tables[t], page)) {
+                if(!begun) {
+                    writer.beginTable(tables[t]);
+                    begun = true;
+                }
+                writer.write(page);
+                rows += page.size;
+                watermarks[t] = page.getLastRowId();
+            }
+            if(begun) {
+                writer.endTable();
+            }
+        }
+        writer.finish();
+
+        if(rows == 0) {
+            return 0;
+        }
+
+        transport.send(deviceId, batch.toByteArray(), batch.size());
+        bytesSent += batch.size();
+        batchesSent++;
+
+        SharedPreferences.Editor editor = prefs.edit();
+        for(int t = 0; t < tables.length; t++) {
+            editor.putLong(PREF_WATERMARK_ID + tables[t], watermarks[t]);
+        }
+        editor.commit();
+        return rows;
+    }
+}
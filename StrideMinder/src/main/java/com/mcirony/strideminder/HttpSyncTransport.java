@@ -0,0 +1,48 @@
+package com.mcirony.strideminder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Sends sync batches to the backend as HTTP POSTs.
+ * The device is identified by the X-Device-Id header, and any 2xx response counts as accepted.
+ */
+public class HttpSyncTransport implements SyncTransport {
+    static final int TIMEOUT_MILLISEC = 30000;
+
+    private final URL url;
+
+    public HttpSyncTransport(URL url) {
+        this.url = url;
+    }
+
+    @Override
+    public void send(String deviceId, byte[] batch, int length) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setConnectTimeout(TIMEOUT_MILLISEC);
+            conn.setReadTimeout(TIMEOUT_MILLISEC);
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(length);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/octet-stream");
+            conn.setRequestProperty("X-Device-Id", deviceId);
+
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(batch, 0, length);
+            } finally {
+                out.close();
+            }
+
+            int status = conn.getResponseCode();
+            if(status < 200 || status >= 300) {
+                throw new IOException("Sync rejected with HTTP " + status);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package com.mcirony.strideminder;
 
 import android.app.Activity;
-import android.app.ActivityManager;
-import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.FrameLayout;
 import android.widget.TextView;
@@ -19,20 +21,32 @@ import org.achartengine.model.XYMultipleSeriesDataset;
 import org.achartengine.renderer.XYMultipleSeriesRenderer;
 import org.achartengine.renderer.XYSeriesRenderer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 
-public class MainMenu extends Activity implements View.OnClickListener {
+public class MainMenu extends Activity implements View.OnClickListener, GaitParamsChannel.Listener {
     final long ONE_HOUR = 3600000;
     final long ONE_DAY = ONE_HOUR * 24;
     final long ONE_MONTH = ONE_DAY * 31;
     final long ONE_YEAR = ONE_DAY * 365;
     final int ORANGE = 0xFFFF8800;
     final int GREEN = 0xFF00CC00;
+    static final String SNAPSHOT_FILE = "chart_snapshot";
+    static final int CHART_ROWS = 1024;    // More than any chart's window holds, even a day of short walking bouts
 
     private GraphicalView chart;
+    private int chartLevel = -1;
+    private TimeSeries strideRegularitySeries;
+    private TimeSeries strideSymmetrySeries;
+    private ChartLoadTask chartLoader;
+    private GaitParamsChannel.Subscription liveUpdates;
+    private final TimeBuckets buckets = TimeBuckets.getInstance();
 
     /**
-     * Registers the view as listener for the control buttons and displays the last day of hourly data in the chart area.
+     * Registers the view as listener for the control buttons and shows the chart that was on screen last time.
+     * Nothing here touches the database: the chart comes from a small saved snapshot, and fresh data
+     * is loaded in the background and replaces it when ready.
      * @param savedInstanceState
      */
     @Override
@@ -46,10 +60,80 @@ public class MainMenu extends Activity implements View.OnClickListener {
         findViewById(R.id.yearButton).setOnClickListener(this);
 
         // Ensure the service start/stop button is in the correct state
-        syncServiceButton();
+        showServiceState(serviceIsRunning());
 
-        // Show the day chart by default
-        showDay();
+        // Show the last chart viewed (or the day chart the first time), then refresh it.
+        ChartSnapshot snapshot = ChartSnapshot.read(new File(getFilesDir(), SNAPSHOT_FILE));
+        int level = TimeBuckets.HOUR;
+        if(snapshot != null) {
+            level = snapshot.level;
+            displayChart(snapshot);
+        }
+        loadChart(level);
+    }
+
+    /**
+     * Starts receiving live gait parameters from the collector while the activity is visible.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        liveUpdates = GaitParamsChannel.getInstance().subscribe(this, new Handler());
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        GaitParamsChannel.getInstance().unsubscribe(liveUpdates);
+        liveUpdates = null;
+    }
+
+    /**
+     * Shows newly computed gait parameters as they arrive. The newest values go in the status bar, and on
+     * the day chart, which plots one point per walking bout, the block is added as a point of its own after
+     * the bouts, without querying the database. It's folded into its bout the next time the chart loads.
+     * @param params The latest gait parameters
+     */
+    @Override
+    public void onGaitParams(GaitParams params) {
+        // Blocks analysed in cadence-only mode have no regularity or symmetry to show.
+        boolean cadenceOnly = Double.isNaN(params.strideRegularity);
+        ((TextView)findViewById(R.id.serviceStatusText)).setText(getString(R.string.service_running) + "\n" + (cadenceOnly ?
+                getString(R.string.live_cadence, params.cadence) :
+                getString(R.string.live_gait_params, params.cadence, params.strideRegularity, params.strideSymmetry)));
+
+        if(chart != null && chartLevel == TimeBuckets.HOUR && !cadenceOnly) {
+            strideRegularitySeries.add(new Date(params.timestamp), params.strideRegularity);
+            strideSymmetrySeries.add(new Date(params.timestamp), params.strideSymmetry);
+            chart.repaint();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(chartLoader != null) {
+            chartLoader.cancel(false);
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main_menu, menu);
+        return true;
+    }
+
+    /**
+     * Handles the options menu. Export runs in the background and reports back with a toast.
+     * @param item The menu item chosen
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch(item.getItemId()) {
+            case R.id.action_export: startService(new Intent(this, GaitExportService.class));
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     /**
@@ -71,10 +155,11 @@ public class MainMenu extends Activity implements View.OnClickListener {
     }
 
     /**
-     * Makes sure the service start/stop button matches the service's current state.
+     * Makes the service start/stop button and status bar show the given state.
+     * @param running True to show the service as running
      */
-    private void syncServiceButton() {
-        if(serviceIsRunning()) {
+    private void showServiceState(boolean running) {
+        if(running) {
             findViewById(R.id.serviceBar).setBackgroundColor(GREEN);
             ((TextView)findViewById(R.id.serviceStatusText)).setText(R.string.service_running);
             ((ToggleButton)findViewById(R.id.serviceToggleButton)).setChecked(true);
@@ -87,84 +172,152 @@ public class MainMenu extends Activity implements View.OnClickListener {
 
     /**
      * Starts the accelerometry service if it's stopped, stops it if it's running.
+     * In burst sampling mode this switches the burst schedule on and off instead.
      */
     private void serviceToggle() {
-        Intent i = new Intent(this, AccelDataCollectorService.class);
-        if(serviceIsRunning()) {
-            stopService(i);
+        // Starting and stopping are asynchronous, so show the state asked for rather than checking again straight away.
+        boolean running = serviceIsRunning();
+        if(getResources().getBoolean(R.bool.burst_sampling)) {
+            if(running) {
+                BurstSamplingService.stop(this);
+            } else {
+                BurstSamplingService.start(this);
+            }
         } else {
-            startService(i);
+            Intent i = new Intent(this, AccelDataCollectorService.class);
+            if(running) {
+                stopService(i);
+            } else {
+                startService(i);
+            }
         }
-        syncServiceButton();
+        showServiceState(!running);
     }
 
     /**
      * Determines whether the accelerometry service is running.
+     * In burst sampling mode, it counts as running while burst sampling is switched on.
      * @return True if the service is currently running.
      */
     private boolean serviceIsRunning() {
-            ActivityManager manager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-            for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-                if (service.service.getClassName().equals(AccelDataCollectorService.class.getName())) {
-                    return true;
-                }
-            }
-        return false;
+        if(getResources().getBoolean(R.bool.burst_sampling)) {
+            return BurstSamplingService.isScheduled(this);
+        }
+        return AccelDataCollectorService.isRunning();
     }
 
     /**
-     * Requests the last 24 hours of hourly averages and displays them in the chart area.
+     * Loads the last 24 hours of hourly averages and displays them in the chart area.
      */
     private void showDay() {
-        GaitParamsDbAdapter db = new GaitParamsDbAdapter(getApplicationContext());
-        db.open();
-        Cursor c = db.getHourlyGaitParams(db.getLastTimestamp() - ONE_DAY, db.getLastTimestamp());
-        displayChart(c);
+        loadChart(TimeBuckets.HOUR);
     }
 
     /**
-     * Requests the last 31 days of daily averages and displays them in the chart area.
+     * Loads the last 31 days of daily averages and displays them in the chart area.
      */
     private void showMonth() {
-        GaitParamsDbAdapter db = new GaitParamsDbAdapter(getApplicationContext());
-        db.open();
-        Cursor c = db.getDailyGaitParams(db.getLastTimestamp() - ONE_MONTH, db.getLastTimestamp());
-        displayChart(c);
+        loadChart(TimeBuckets.DAY);
     }
 
     /**
-     * Requests the last 12 months of monthly averages and displays them in the chart area.
+     * Loads the last 12 months of monthly averages and displays them in the chart area.
      */
     private void showYear() {
-        GaitParamsDbAdapter db = new GaitParamsDbAdapter(getApplicationContext());
-        db.open();
-        Cursor c = db.getMonthlyGaitParams(db.getLastTimestamp() - ONE_YEAR, db.getLastTimestamp());
-        displayChart(c);
+        loadChart(TimeBuckets.MONTH);
+    }
+
+    /**
+     * Starts loading a chart in the background, abandoning any load already in progress.
+     * @param level TimeBuckets.HOUR for the day chart, DAY for the month chart or MONTH for the year chart
+     */
+    private void loadChart(int level) {
+        if(chartLoader != null) {
+            chartLoader.cancel(false);
+        }
+        chartLoader = new ChartLoadTask(level);
+        chartLoader.execute();
     }
 
     /**
-     * Takes a DB cursor containing time-stamped gait parameters, formats the contents, and displays them as a chart.
-     * @param c The data set to display.
+     * Reads a chart's data from the database and saves it as the snapshot for next launch, off the UI thread.
+     * Each chart's window starts on a bucket boundary, so the oldest bucket is never cut off part way through.
      */
-    private void displayChart(Cursor c)
+    private class ChartLoadTask extends AsyncTask<Void, Void, ChartSnapshot> {
+        private final int level;
+        private final File snapshotFile = new File(getFilesDir(), SNAPSHOT_FILE);
+        private final GaitParamsDbAdapter db = new GaitParamsDbAdapter(getApplicationContext());
+
+        ChartLoadTask(int level) {
+            this.level = level;
+        }
+
+        @Override
+        protected ChartSnapshot doInBackground(Void... params) {
+            String table;
+            long span;
+            switch(level) {
+                case TimeBuckets.DAY: table = GaitParamsDbAdapter.DAILY_TABLE;
+                    span = ONE_MONTH;
+                    break;
+                case TimeBuckets.MONTH: table = GaitParamsDbAdapter.MONTHLY_TABLE;
+                    span = ONE_YEAR;
+                    break;
+                // A day's chart plots each bout of walking, rather than hourly averages that lump walking in with idle
+                // time and leave out the hour still in progress.
+                default: table = GaitParamsDbAdapter.BOUTS_VIEW;
+                    span = ONE_DAY;
+                    break;
+            }
+
+            GaitParamsPage page;
+            db.open();
+            try {
+                long last = db.getLastTimestamp();
+                page = new GaitParamsPage(CHART_ROWS, buckets.startOf(level, last - span));
+                db.readPage(table, last, page);
+            } finally {
+                db.close();
+            }
+
+            ChartSnapshot snapshot = ChartSnapshot.fromPage(level, page);
+            try {
+                snapshot.write(snapshotFile);
+            } catch(IOException e) {
+                Log.w("StrideMinder", "Couldn't save chart snapshot: " + e.getMessage());
+            }
+            return snapshot;
+        }
+
+        @Override
+        protected void onPostExecute(ChartSnapshot snapshot) {
+            displayChart(snapshot);
+        }
+    }
+
+    /**
+     * Takes time-stamped gait parameters, formats them, and displays them as a chart, replacing any chart already shown.
+     * @param snapshot The data set to display.
+     */
+    private void displayChart(ChartSnapshot snapshot)
     {
-        // Sanity check. Don't try and display the contents of an empty cursor.
-        if(c.getCount() == 0) {
+        // Sanity check. Don't try and display an empty data set.
+        if(snapshot.size() == 0) {
             return;
         }
 
-        // Get the column numbers for the data we need.
-        int timestampIndex = c.getColumnIndex(GaitParamsDbAdapter.KEY_TIMESTAMP);
-        int strideRegIndex = c.getColumnIndex(GaitParamsDbAdapter.KEY_STRIDE_REGULARITY);
-        int strideSymIndex = c.getColumnIndex(GaitParamsDbAdapter.KEY_STRIDE_SYMMETRY);
-
         // Set up and populate the two data sets to display.
         TimeSeries strideRegularity = new TimeSeries("Stride Regularity");
         TimeSeries strideSymmetry = new TimeSeries("Stride Symmetry");
 
-        while(c.moveToNext()) {
-            strideRegularity.add(new Date(c.getLong(timestampIndex)), c.getDouble(strideRegIndex));
-            strideSymmetry.add(new Date(c.getLong(timestampIndex)), c.getDouble(strideSymIndex));
+        // Points with no regularity or symmetry (NaN, from cadence-only data) are left out rather than drawn at zero.
+        for(int i = 0; i < snapshot.size(); i++) {
+            if(!Double.isNaN(snapshot.strideRegularity[i])) {
+                strideRegularity.add(new Date(snapshot.timestamps[i]), snapshot.strideRegularity[i]);
+            }
+            if(!Double.isNaN(snapshot.strideSymmetry[i])) {
+                strideSymmetry.add(new Date(snapshot.timestamps[i]), snapshot.strideSymmetry[i]);
+            }
         }
 
         // Bundle the two data sets into a container.
@@ -192,11 +345,16 @@ public class MainMenu extends Activity implements View.OnClickListener {
         //renderer.setXLabels(5);
         renderer.setShowGrid(true);
 
-        // Creating an intent to plot line chart using dataset and multipleRenderer
-        chart = ChartFactory.getLineChartView(getBaseContext(), datasets, renderer);
+        chartLevel = snapshot.level;
+        strideRegularitySeries = strideRegularity;
+        strideSymmetrySeries = strideSymmetry;
 
-        // Place the chart in its designated container.
+        // Place the chart in its designated container, in place of the previous one.
         FrameLayout chartContainer = (FrameLayout)findViewById(R.id.chartContainer);
+        if(chart != null) {
+            chartContainer.removeView(chart);
+        }
+        chart = ChartFactory.getLineChartView(getBaseContext(), datasets, renderer);
         chartContainer.addView(chart);
     }
 }
@@ -0,0 +1,184 @@
+package com.mcirony.strideminder;
+
+import java.util.Arrays;
+
+/**
+ * Estimates cadence from a vertical acceleration signal one sample at a time, by counting steps.
+ *
+ * This is the cheap alternative to the Moe-Nilssen autocorrelation for deployments that only need
+ * cadence: each sample costs a handful of multiply-adds, where the autocorrelation costs work in
+ * proportion to the block length. It gives no regularity or symmetry measures.
+ *
+ * Each sample goes through:
+ *  - A one second moving average, subtracted to remove gravity and slow drift.
+ *  - Two single-pole low-pass stages, which smooth out sensor noise and the jolt at heel strike.
+ *  - Peak detection. A local maximum counts as a step if it's above an adaptive threshold (a fraction of
+ *    the recent signal amplitude, and never below MIN_PEAK) and far enough after the last step. The minimum
+ *    gap between steps also adapts, to half the average step interval so far, so the smaller bump that
+ *    each step's second harmonic makes isn't counted as a step of its own.
+ * Peaks in the first second are ignored while the filters settle.
+ *
+ * Cadence is the number of step intervals over the time from the first step to the last. A gap of about
+ * two or more average intervals counts as that many intervals, so a weak step that was missed (the short
+ * step of a limp, say) doesn't drag the cadence down. The signal looks like walking if there are at least
+ * MIN_STEPS steps, at reasonably even intervals.
+ *
+ * The position of every step is kept (getStepSamples()), with missed steps filled in evenly across the gap,
+ * for the step event table.
+ *
+ * Not safe to share between threads. Use one instance per block, or per continuous stream.
+ */
+public class StreamingCadenceEstimator {
+    /** Smallest peak, after filtering, that counts as a step (m/s^2) */
+    public static final double MIN_PEAK = 0.6;
+    /** Fewest steps for the signal to count as walking */
+    public static final int MIN_STEPS = 5;
+    /** Largest coefficient of variation of step intervals for the signal to count as walking */
+    public static final double MAX_INTERVAL_VARIATION = 0.3;
+
+    static final double GRAVITY_TIME_CONSTANT_SEC = 1.0;
+    static final double LOW_PASS_HZ = 4.0;
+    static final double AMPLITUDE_TIME_CONSTANT_SEC = 2.0;
+    static final double PEAK_FRACTION = 0.5;    // Peaks must reach this fraction of the average rectified amplitude
+    static final double MIN_STEP_INTERVAL_SEC = 0.25;    // Nobody takes more than four steps a second
+
+    private final double sampleRateHz;
+    private final double gravityAlpha;
+    private final double lowPassAlpha;
+    private final double amplitudeAlpha;
+    private final int minStepSamples;
+    private final int warmUpSamples;
+
+    private long samples;
+    private double gravity;
+    private double lowPass1, lowPass2;
+    private double amplitude;
+    private double previous, beforePrevious;
+
+    private int steps;
+    private long intervals;    // Step intervals between the first step and the last, including any missed steps
+    private long firstStepSample, lastStepSample;
+    private double intervalSum, intervalSumOfSquares;
+    private long[] stepSamples = new long[32];
+    private int recordedSteps;    // Steps in stepSamples: the detected ones plus any missed ones filled in
+
+    /**
+     * @param sampleRateHz Rate of the samples that will be added
+     */
+    public StreamingCadenceEstimator(double sampleRateHz) {
+        this.sampleRateHz = sampleRateHz;
+        gravityAlpha = 1 - Math.exp(-1 / (sampleRateHz * GRAVITY_TIME_CONSTANT_SEC));
+        lowPassAlpha = 1 - Math.exp(-2 * Math.PI * LOW_PASS_HZ / sampleRateHz);
+        amplitudeAlpha = 1 - Math.exp(-1 / (sampleRateHz * AMPLITUDE_TIME_CONSTANT_SEC));
+        minStepSamples = (int) Math.ceil(MIN_STEP_INTERVAL_SEC * sampleRateHz);
+        warmUpSamples = (int) (GRAVITY_TIME_CONSTANT_SEC * sampleRateHz);
+        reset();
+    }
+
+    /**
+     * Forgets all samples and steps so far.
+     */
+    public void reset() {
+        samples = 0;
+        gravity = lowPass1 = lowPass2 = amplitude = 0;
+        previous = beforePrevious = 0;
+        steps = 0;
+        intervals = 0;
+        firstStepSample = lastStepSample = -1;
+        intervalSum = intervalSumOfSquares = 0;
+        recordedSteps = 0;
+    }
+
+    /**
+     * Adds the next sample.
+     * @param vertical Vertical acceleration (m/s^2), gravity included
+     */
+    public void addSample(double vertical) {
+        // Start the gravity estimate at the first sample rather than at zero, so it starts out close.
+        if(samples == 0) {
+            gravity = vertical;
+        }
+        gravity += (vertical - gravity) * gravityAlpha;
+        lowPass1 += ((vertical - gravity) - lowPass1) * lowPassAlpha;
+        lowPass2 += (lowPass1 - lowPass2) * lowPassAlpha;
+        double filtered = lowPass2;
+        amplitude += (Math.abs(filtered) - amplitude) * amplitudeAlpha;
+
+        // The previous sample was a step if it's a peak above the threshold, once the filters have settled.
+        long candidate = samples - 1;
+        if(samples > warmUpSamples && previous > beforePrevious && previous >= filtered
+                && previous >= Math.max(MIN_PEAK, amplitude * PEAK_FRACTION)) {
+            if(steps == 0) {
+                firstStepSample = candidate;
+                lastStepSample = candidate;
+                steps = 1;
+                recordStep(candidate);
+            } else {
+                long sinceLast = candidate - lastStepSample;
+                double meanInterval = intervals > 0 ? intervalSum / intervals : 0;
+                if(sinceLast >= Math.max(minStepSamples, 0.5 * meanInterval)) {
+                    // A gap of about two or more average intervals means steps too weak to pass the threshold were missed.
+                    long spanned = intervals >= 2 ? Math.max(1, Math.round(sinceLast / meanInterval)) : 1;
+                    double interval = (double) sinceLast / spanned;
+                    intervals += spanned;
+                    intervalSum += sinceLast;
+                    intervalSumOfSquares += spanned * interval * interval;
+                    for(int i = 1; i < spanned; i++) {
+                        recordStep(lastStepSample + Math.round(i * interval));
+                    }
+                    recordStep(candidate);
+                    lastStepSample = candidate;
+                    steps++;
+                }
+            }
+        }
+
+        beforePrevious = previous;
+        previous = filtered;
+        samples++;
+    }
+
+    private void recordStep(long sample) {
+        if(recordedSteps == stepSamples.length) {
+            stepSamples = Arrays.copyOf(stepSamples, recordedSteps * 2);
+        }
+        stepSamples[recordedSteps++] = sample;
+    }
+
+    /**
+     * @return Number of steps detected so far
+     */
+    public int getStepCount() {
+        return steps;
+    }
+
+    /**
+     * @return Index of the sample at each step so far, in order, including missed steps filled in between detected ones
+     */
+    public long[] getStepSamples() {
+        return Arrays.copyOf(stepSamples, recordedSteps);
+    }
+
+    /**
+     * @return Cadence in strides per minute (two steps to a stride, as GaitAnalyser reports it), or NaN if fewer than two steps have been seen.
+     */
+    public double getCadence() {
+        if(intervals == 0) {
+            return Double.NaN;
+        }
+        double stepsPerSecond = intervals * sampleRateHz / (lastStepSample - firstStepSample);
+        return stepsPerSecond * 60 / 2;
+    }
+
+    /**
+     * @return True if the steps so far look like walking: enough of them, at even enough intervals.
+     */
+    public boolean isWalking() {
+        if(steps < MIN_STEPS) {
+            return false;
+        }
+        double mean = intervalSum / intervals;
+        double variance = Math.max(0, intervalSumOfSquares / intervals - mean * mean);
+        return Math.sqrt(variance) / mean <= MAX_INTERVAL_VARIATION;
+    }
+}
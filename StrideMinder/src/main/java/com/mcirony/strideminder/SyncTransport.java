@@ -0,0 +1,19 @@
+package com.mcirony.strideminder;
+
+import java.io.IOException;
+
+/**
+ * Carries sync batches from GaitSyncUploader to the backend.
+ */
+public interface SyncTransport {
+
+    /**
+     * Delivers one batch. Must not return normally unless the backend has accepted it,
+     * because the uploader moves its watermarks on as soon as this returns.
+     * @param deviceId Identifies the sending device
+     * @param batch A complete GaitExportWriter file
+     * @param length Number of bytes of batch to send
+     * @throws IOException If the batch wasn't accepted. The uploader will retry it later.
+     */
+    void send(String deviceId, byte[] batch, int length) throws IOException;
+}
@@ -0,0 +1,134 @@
+package com.mcirony.strideminder;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Works out which hour, day or month a time falls into, in local time.
+ * These buckets are the timestamps of the rows in the hourly, daily and monthly tables.
+ *
+ * The boundaries of the most recent bucket at each level are cached, so the usual case
+ * (another reading in the same hour as the last one) is two comparisons with no allocation.
+ * When a time falls outside the cached bucket, the new boundaries are worked out with a
+ * Calendar in the configured time zone, so days either side of a DST change come out at their
+ * real lengths. Hours are found from the zone's offset at that instant instead, because a Calendar
+ * can't tell the two copies of the repeated hour apart when the clocks go back.
+ *
+ * The shared instance follows the device's time zone; TimeZoneChangedReceiver tells it when that changes.
+ */
+public class TimeBuckets {
+    public static final int HOUR = 0;
+    public static final int DAY = 1;
+    public static final int MONTH = 2;
+
+    private static final long ONE_HOUR = 3600000;
+
+    private static TimeBuckets instance;
+
+    private TimeZone zone;
+    private Calendar calendar;
+
+    // Start (inclusive) and end (exclusive) of the cached bucket at each level, in msec since epoch.
+    private final long[] starts = new long[3];
+    private final long[] ends = new long[3];
+
+    /**
+     * @return The instance shared by the database and the UI, using the device's time zone.
+     */
+    public static synchronized TimeBuckets getInstance() {
+        if(instance == null) {
+            instance = new TimeBuckets(TimeZone.getDefault());
+        }
+        return instance;
+    }
+
+    /**
+     * @param zone The time zone whose hours, days and months to use
+     */
+    public TimeBuckets(TimeZone zone) {
+        setTimeZone(zone);
+    }
+
+    /**
+     * Switches to a different time zone and forgets the cached buckets.
+     * @param zone The new time zone
+     */
+    public synchronized void setTimeZone(TimeZone zone) {
+        this.zone = zone;
+        calendar = Calendar.getInstance(zone);
+        for(int level = HOUR; level <= MONTH; level++) {
+            starts[level] = Long.MAX_VALUE;
+            ends[level] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Returns the start of the hour, day or month the given time falls into.
+     * @param level HOUR, DAY or MONTH
+     * @param time Time in msec since epoch
+     * @return Time of the start of the bucket (msec since epoch)
+     */
+    public synchronized long startOf(int level, long time) {
+        if(time < starts[level] || time >= ends[level]) {
+            findBucket(level, time);
+        }
+        return starts[level];
+    }
+
+    /**
+     * Returns the end of the hour, day or month the given time falls into, which is the start of the next one.
+     * @param level HOUR, DAY or MONTH
+     * @param time Time in msec since epoch
+     * @return Time of the end of the bucket (msec since epoch)
+     */
+    public synchronized long endOf(int level, long time) {
+        if(time < starts[level] || time >= ends[level]) {
+            findBucket(level, time);
+        }
+        return ends[level];
+    }
+
+    /**
+     * Determines whether an hour, day or month boundary lies between two times.
+     * @param level HOUR, DAY or MONTH
+     * @param earlier The earlier time (msec since epoch)
+     * @param later The later time (msec since epoch)
+     * @return True if the earlier time is before the start of the later time's bucket.
+     */
+    public boolean crossed(int level, long earlier, long later) {
+        return earlier < startOf(level, later);
+    }
+
+    /**
+     * Works out the boundaries of the bucket containing the given time and caches them.
+     */
+    private void findBucket(int level, long time) {
+        if(level == HOUR) {
+            long localTime = time + zone.getOffset(time);
+            long intoHour = localTime % ONE_HOUR;
+            if(intoHour < 0) {
+                intoHour += ONE_HOUR;
+            }
+            starts[HOUR] = time - intoHour;
+            ends[HOUR] = starts[HOUR] + ONE_HOUR;
+            return;
+        }
+
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        if(level == MONTH) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        starts[level] = calendar.getTimeInMillis();
+
+        if(level == DAY) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        } else {
+            calendar.add(Calendar.MONTH, 1);
+        }
+        ends[level] = calendar.getTimeInMillis();
+    }
+}
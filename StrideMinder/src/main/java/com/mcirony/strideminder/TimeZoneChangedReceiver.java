@@ -0,0 +1,18 @@
+package com.mcirony.strideminder;
+
+import java.util.TimeZone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Keeps the shared TimeBuckets in step with the device's time zone.
+ */
+public class TimeZoneChangedReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        TimeBuckets.getInstance().setTimeZone(TimeZone.getDefault());
+    }
+}
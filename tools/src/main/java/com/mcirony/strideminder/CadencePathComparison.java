@@ -0,0 +1,117 @@
+package com.mcirony.strideminder;
+
+/**
+ * Checks the cadence-only path (GaitAnalyser.analyseCadence()) against the full Moe-Nilssen analysis,
+ * and compares their speed, on the desktop JVM.
+ *
+ * A set of SyntheticGaitGenerator blocks (every activity, a range of device angles and noise levels)
+ * is analysed both ways. The report gives, per activity, how often the two agree on walking, the mean and
+ * largest cadence differences where both found walking, and single-threaded throughput for each path.
+ * Exits with status 1 if any cadence difference is over MAX_CADENCE_ERROR.
+ *
+ * Usage: CadencePathComparison [blocksPerCase] [passes]
+ */
+public class CadencePathComparison {
+    /** Largest acceptable cadence difference from the full analysis (strides per minute) */
+    public static final double MAX_CADENCE_ERROR = 2.0;
+
+    static final double RATE_HZ = 100;
+    static final long BLOCK_DURATION_NANOSEC = 10000000000L;
+    static final int[] ACTIVITIES = {SyntheticGaitGenerator.STATIONARY, SyntheticGaitGenerator.WALKING,
+            SyntheticGaitGenerator.LIMPING, SyntheticGaitGenerator.RUNNING};
+    static final String[] ACTIVITY_NAMES = {"stationary", "walking", "limping", "running"};
+    static final double[] PITCHES = {0, 0.3, 0.8, 1.4};
+    static final double[] NOISES = {0.05, 0.3};
+
+    public static void main(String[] args) {
+        int blocksPerCase = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        int casesPerActivity = PITCHES.length * NOISES.length;
+        int n = ACTIVITIES.length * casesPerActivity * blocksPerCase;
+        int[] sizes = new int[n];
+        double[][] x = new double[n][], y = new double[n][], z = new double[n][], t = new double[n][];
+
+        // Build the blocks, grouped by activity
+        int b = 0;
+        float[] xyz = new float[3];
+        for(int activity : ACTIVITIES) {
+            for(double pitch : PITCHES) {
+                for(double noise : NOISES) {
+                    SyntheticGaitGenerator generator = new SyntheticGaitGenerator(b + 1, RATE_HZ, 0.05, noise, pitch, pitch / 3);
+                    generator.setActivity(activity);
+                    for(int k = 0; k < blocksPerCase; k++, b++) {
+                        int capacity = (int) (RATE_HZ * 15);
+                        x[b] = new double[capacity]; y[b] = new double[capacity]; z[b] = new double[capacity]; t[b] = new double[capacity];
+                        long start = generator.next(xyz);
+                        int i = 0;
+                        long time = start;
+                        do {
+                            x[b][i] = xyz[0];
+                            y[b][i] = xyz[1];
+                            z[b][i] = xyz[2];
+                            t[b][i] = time - start;
+                            i++;
+                            time = generator.next(xyz);
+                        } while(time - start < BLOCK_DURATION_NANOSEC && i < capacity);
+                        sizes[b] = i;
+                    }
+                }
+            }
+        }
+
+        // Accuracy
+        GaitAnalyser analyser = new GaitAnalyser();
+        int perActivity = casesPerActivity * blocksPerCase;
+        double worst = 0;
+        for(int a = 0; a < ACTIVITIES.length; a++) {
+            int bothWalking = 0, neitherWalking = 0, fullOnly = 0, estimatorOnly = 0;
+            double sumDifference = 0, maxDifference = 0;
+            for(int i = a * perActivity; i < (a + 1) * perActivity; i++) {
+                GaitParams full = analyser.analyse(0, sizes[i], x[i], y[i], z[i], t[i]);
+                GaitParams estimate = analyser.analyseCadence(0, sizes[i], x[i], y[i], z[i], t[i]);
+                if(full == null && estimate == null) {
+                    neitherWalking++;
+                } else if(estimate == null) {
+                    fullOnly++;
+                } else if(full == null) {
+                    estimatorOnly++;
+                } else {
+                    bothWalking++;
+                    double difference = Math.abs(full.cadence - estimate.cadence);
+                    sumDifference += difference;
+                    maxDifference = Math.max(maxDifference, difference);
+                }
+            }
+            worst = Math.max(worst, maxDifference);
+            System.out.println(String.format("%-10s bothWalking=%d neitherWalking=%d fullOnly=%d estimatorOnly=%d cadence |full - estimate| mean %.2f max %.2f strides/min",
+                    ACTIVITY_NAMES[a], bothWalking, neitherWalking, fullOnly, estimatorOnly,
+                    bothWalking > 0 ? sumDifference / bothWalking : 0, maxDifference));
+        }
+
+        // Speed. Each path gets a warm-up pass before it's timed.
+        double fullRate = 0, cadenceRate = 0;
+        for(int pass = 0; pass <= passes; pass++) {
+            long start = System.nanoTime();
+            for(int i = 0; i < n; i++) {
+                analyser.analyse(0, sizes[i], x[i], y[i], z[i], t[i]);
+            }
+            long middle = System.nanoTime();
+            for(int i = 0; i < n; i++) {
+                analyser.analyseCadence(0, sizes[i], x[i], y[i], z[i], t[i]);
+            }
+            long end = System.nanoTime();
+            if(pass > 0) {
+                fullRate = Math.max(fullRate, n / ((middle - start) / 1e9));
+                cadenceRate = Math.max(cadenceRate, n / ((end - middle) / 1e9));
+            }
+        }
+        System.out.println(String.format("blocks/s (best of %d passes): full %.0f cadence only %.0f (%.1fx)", passes, fullRate, cadenceRate, cadenceRate / fullRate));
+
+        if(worst > MAX_CADENCE_ERROR) {
+            System.out.println("FAIL: cadence difference " + worst + " is over " + MAX_CADENCE_ERROR);
+            System.exit(1);
+        }
+        System.out.println("OK: within " + MAX_CADENCE_ERROR + " strides/min");
+    }
+}
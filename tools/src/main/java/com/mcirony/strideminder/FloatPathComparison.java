@@ -0,0 +1,112 @@
+package com.mcirony.strideminder;
+
+/**
+ * Checks FloatGaitAnalyser against GaitAnalyser and compares their speed, on the desktop JVM.
+ *
+ * A set of SyntheticGaitGenerator blocks (every activity, a range of device angles and noise levels)
+ * is analysed by both paths. The report gives how often they agree on walking, the largest differences
+ * in each gait parameter, and single-threaded throughput and buffer bytes per block for each path.
+ * Exits with status 1 if any difference is over FloatGaitAnalyser.MAX_REGULARITY_ERROR.
+ *
+ * Usage: FloatPathComparison [blocksPerCase] [passes]
+ */
+public class FloatPathComparison {
+    static final double RATE_HZ = 100;
+    static final long BLOCK_DURATION_NANOSEC = 10000000000L;
+    static final int[] ACTIVITIES = {SyntheticGaitGenerator.STATIONARY, SyntheticGaitGenerator.WALKING,
+            SyntheticGaitGenerator.LIMPING, SyntheticGaitGenerator.RUNNING};
+    static final double[] PITCHES = {0, 0.3, 0.8, 1.4};
+    static final double[] NOISES = {0.05, 0.3};
+
+    public static void main(String[] args) {
+        int blocksPerCase = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        int cases = ACTIVITIES.length * PITCHES.length * NOISES.length;
+        int n = cases * blocksPerCase;
+        int[] sizes = new int[n];
+        double[][] xd = new double[n][], yd = new double[n][], zd = new double[n][], td = new double[n][];
+        float[][] xf = new float[n][], yf = new float[n][], zf = new float[n][], tf = new float[n][];
+
+        // Build the blocks
+        int b = 0;
+        float[] xyz = new float[3];
+        for(int activity : ACTIVITIES) {
+            for(double pitch : PITCHES) {
+                for(double noise : NOISES) {
+                    SyntheticGaitGenerator generator = new SyntheticGaitGenerator(b + 1, RATE_HZ, 0.05, noise, pitch, pitch / 3);
+                    generator.setActivity(activity);
+                    for(int k = 0; k < blocksPerCase; k++, b++) {
+                        int capacity = (int) (RATE_HZ * 15);
+                        xd[b] = new double[capacity]; yd[b] = new double[capacity]; zd[b] = new double[capacity]; td[b] = new double[capacity];
+                        xf[b] = new float[capacity]; yf[b] = new float[capacity]; zf[b] = new float[capacity]; tf[b] = new float[capacity];
+                        long start = generator.next(xyz);
+                        int i = 0;
+                        long t = start;
+                        do {
+                            xd[b][i] = xf[b][i] = xyz[0];
+                            yd[b][i] = yf[b][i] = xyz[1];
+                            zd[b][i] = zf[b][i] = xyz[2];
+                            td[b][i] = tf[b][i] = t - start;
+                            i++;
+                            t = generator.next(xyz);
+                        } while(t - start < BLOCK_DURATION_NANOSEC && i < capacity);
+                        sizes[b] = i;
+                    }
+                }
+            }
+        }
+
+        // Accuracy
+        GaitAnalyser doubleAnalyser = new GaitAnalyser();
+        FloatGaitAnalyser floatAnalyser = new FloatGaitAnalyser();
+        int bothWalking = 0, neitherWalking = 0, disagree = 0;
+        double maxStepReg = 0, maxStrideReg = 0, maxSym = 0, maxCadence = 0;
+        for(int i = 0; i < n; i++) {
+            GaitParams d = doubleAnalyser.analyse(0, sizes[i], xd[i], yd[i], zd[i], td[i]);
+            GaitParams f = floatAnalyser.analyse(0, sizes[i], xf[i], yf[i], zf[i], tf[i]);
+            if(d == null && f == null) {
+                neitherWalking++;
+            } else if(d == null || f == null) {
+                disagree++;
+            } else {
+                bothWalking++;
+                maxStepReg = Math.max(maxStepReg, Math.abs(d.stepRegularity - f.stepRegularity));
+                maxStrideReg = Math.max(maxStrideReg, Math.abs(d.strideRegularity - f.strideRegularity));
+                maxSym = Math.max(maxSym, Math.abs(d.strideSymmetry - f.strideSymmetry));
+                maxCadence = Math.max(maxCadence, Math.abs(d.cadence - f.cadence));
+            }
+        }
+
+        System.out.println("blocks=" + n + " bothWalking=" + bothWalking + " neitherWalking=" + neitherWalking + " disagree=" + disagree);
+        System.out.println(String.format("max |double - float|: stepRegularity %.2e strideRegularity %.2e strideSymmetry %.2e cadence %.2e",
+                maxStepReg, maxStrideReg, maxSym, maxCadence));
+
+        // Speed. Each path gets a warm-up pass before it's timed.
+        double doubleRate = 0, floatRate = 0;
+        for(int pass = 0; pass <= passes; pass++) {
+            long start = System.nanoTime();
+            for(int i = 0; i < n; i++) {
+                doubleAnalyser.analyse(0, sizes[i], xd[i], yd[i], zd[i], td[i]);
+            }
+            long middle = System.nanoTime();
+            for(int i = 0; i < n; i++) {
+                floatAnalyser.analyse(0, sizes[i], xf[i], yf[i], zf[i], tf[i]);
+            }
+            long end = System.nanoTime();
+            if(pass > 0) {
+                doubleRate = Math.max(doubleRate, n / ((middle - start) / 1e9));
+                floatRate = Math.max(floatRate, n / ((end - middle) / 1e9));
+            }
+        }
+        System.out.println(String.format("blocks/s (best of %d passes): double %.0f float %.0f (%.1fx)", passes, doubleRate, floatRate, floatRate / doubleRate));
+        System.out.println("buffer bytes per block: double " + (4 * 8 * sizes[0]) + " float " + (4 * 4 * sizes[0]));
+
+        double worst = Math.max(maxStepReg, Math.max(maxStrideReg, maxSym));
+        if(worst > FloatGaitAnalyser.MAX_REGULARITY_ERROR) {
+            System.out.println("FAIL: difference " + worst + " is over " + FloatGaitAnalyser.MAX_REGULARITY_ERROR);
+            System.exit(1);
+        }
+        System.out.println("OK: within " + FloatGaitAnalyser.MAX_REGULARITY_ERROR);
+    }
+}
@@ -0,0 +1,448 @@
+package com.mcirony.strideminder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the gait analysis centrally for many devices that upload raw accelerometry blocks.
+ *
+ * Devices connect over TCP on the loopback interface and send blocks in the format written by writeBlock().
+ * Every block is routed to a shard chosen from its device ID. Each shard is a single thread with a bounded
+ * queue, so a device's blocks are analysed in the order they arrived, and the per-device hourly rollup
+ * state is only ever touched by its own shard thread. A full queue blocks the connection reading from it,
+ * which pushes back on the uploader instead of buffering without limit.
+ * Results go to the GaitParamsStore given to the constructor.
+ * With setFloatPrecision(true), blocks are kept as the floats they arrive as and analysed by
+ * FloatGaitAnalyser, which halves the memory each queued block takes.
+ * A block that's older than the hour its device's rollup is in is stored, but left out of the rollups,
+ * because that hour has already been written. getLateBlocks() counts them.
+ */
+public class GaitIngestionServer {
+    public static final int PROTOCOL_MAGIC = 0x534D4231; // "SMB1"
+    public static final int MAX_BLOCK_SIZE = 10000;    // Far more than ten seconds of events at any realistic sensor rate
+    private static final Block POISON = new Block("", 0, 0, false);
+    private static final Logger LOG = Logger.getLogger(GaitIngestionServer.class.getName());
+
+    private final GaitParamsStore store;
+    private final int shardCount;
+    private final int queueCapacity;
+    private final int maxConnections;
+    private boolean floatPrecision;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private ExecutorService connectionPool;
+    private Shard[] shards;
+    private final Set<Socket> openConnections = Collections.synchronizedSet(new HashSet<Socket>());
+    private volatile boolean stopping;
+
+    private final AtomicLong blocksReceived = new AtomicLong();
+    private final AtomicLong blocksProcessed = new AtomicLong();
+    private final AtomicLong lateBlocks = new AtomicLong();
+
+    /**
+     * @param store Where to write the results
+     * @param shardCount Number of analysis threads. The number of available cores is a sensible choice.
+     * @param queueCapacity Number of blocks each shard will hold before uploads to it are made to wait
+     * @param maxConnections Number of uploads that are read concurrently. Others wait for a free slot.
+     */
+    public GaitIngestionServer(GaitParamsStore store, int shardCount, int queueCapacity, int maxConnections) {
+        this.store = store;
+        this.shardCount = shardCount;
+        this.queueCapacity = queueCapacity;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Chooses the signal path. Must be called before start().
+     * @param floatPrecision True to analyse blocks in single precision with FloatGaitAnalyser
+     */
+    public void setFloatPrecision(boolean floatPrecision) {
+        this.floatPrecision = floatPrecision;
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     * @param port Port to listen on, or 0 to pick any free port (see getPort())
+     * @throws IOException If the socket can't be opened
+     */
+    public synchronized void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, maxConnections, InetAddress.getByName("127.0.0.1"));
+
+        shards = new Shard[shardCount];
+        for(int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+            shards[i].start();
+        }
+
+        connectionPool = Executors.newFixedThreadPool(maxConnections);
+
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        }, "GaitIngestionServer-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Stops accepting uploads, drops any connections still open, and waits for queued blocks to be analysed.
+     * Each device's rollup for the hour it was in is then stored, even though the hour isn't over.
+     */
+    public synchronized void stop() throws InterruptedException {
+        stopping = true;
+        try {
+            serverSocket.close();
+        } catch(IOException e) {
+            // Closing is all we wanted anyway.
+        }
+        acceptThread.join();
+
+        // Interrupting the readers doesn't wake one blocked reading a socket, but closing the socket does.
+        List<Socket> open;
+        synchronized(openConnections) {
+            open = new ArrayList<Socket>(openConnections);
+        }
+        for(Socket s : open) {
+            closeQuietly(s);
+        }
+        connectionPool.shutdownNow();
+        if(!connectionPool.awaitTermination(10, TimeUnit.SECONDS)) {
+            LOG.warning("Connections still being read after stopping");
+        }
+
+        for(Shard s : shards) {
+            s.queue.put(POISON);
+        }
+        for(Shard s : shards) {
+            s.join();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getBlocksReceived() {
+        return blocksReceived.get();
+    }
+
+    public long getBlocksProcessed() {
+        return blocksProcessed.get();
+    }
+
+    /**
+     * @return The number of blocks that were left out of the hourly rollups because their hour had already been stored.
+     */
+    public long getLateBlocks() {
+        return lateBlocks.get();
+    }
+
+    /**
+     * Waits until the given number of blocks have been analysed.
+     * @param count Number of blocks to wait for
+     * @param timeoutMillis Maximum time to wait
+     * @return True if the count was reached before the timeout.
+     */
+    public boolean awaitProcessed(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized(blocksProcessed) {
+            while(blocksProcessed.get() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    return false;
+                }
+                blocksProcessed.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes one block in the upload format.
+     * Each block is: magic, device ID, start time (msec since epoch), event count, then for every event
+     * its timestamp (nanoseconds) and X, Y and Z acceleration as floats, which is how the sensor reports them.
+     * @param out Stream to write to
+     * @param deviceId The uploading device
+     * @param startTimeMillisec System time when recording started for this block
+     * @param count Number of events to write
+     * @param x X acceleration values
+     * @param y Y acceleration values
+     * @param z Z acceleration values
+     * @param tNanosec Event timestamps (nanoseconds)
+     */
+    public static void writeBlock(DataOutputStream out, String deviceId, long startTimeMillisec, int count, float[] x, float[] y, float[] z, long[] tNanosec) throws IOException {
+        out.writeInt(PROTOCOL_MAGIC);
+        out.writeUTF(deviceId);
+        out.writeLong(startTimeMillisec);
+        out.writeInt(count);
+        for(int i = 0; i < count; i++) {
+            out.writeLong(tNanosec[i]);
+            out.writeFloat(x[i]);
+            out.writeFloat(y[i]);
+            out.writeFloat(z[i]);
+        }
+    }
+
+    /**
+     * Opens a connection to a server on this machine, ready for writeBlock().
+     * @param port The server's port
+     * @return A buffered stream onto the connection. Closing it closes the connection.
+     */
+    public static DataOutputStream connect(int port) throws IOException {
+        Socket s = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        s.setTcpNoDelay(true);
+        return new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 65536));
+    }
+
+    private void acceptConnections() {
+        while(!serverSocket.isClosed()) {
+            final Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch(IOException e) {
+                // Thrown when the socket is closed by stop()
+                return;
+            }
+            // stop() joins this thread before closing what's open, so every connection it accepts is closed.
+            openConnections.add(s);
+            connectionPool.execute(new Runnable() {
+                public void run() {
+                    readConnection(s);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads blocks from one connection until it's closed, handing each one to its device's shard.
+     */
+    private void readConnection(Socket s) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536));
+            while(true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch(EOFException e) {
+                    return;    // Clean end of upload
+                }
+                if(magic != PROTOCOL_MAGIC) {
+                    throw new IOException("Bad block header " + Integer.toHexString(magic));
+                }
+
+                String deviceId = in.readUTF();
+                long startTimeMillisec = in.readLong();
+                int count = in.readInt();
+                if(count < 2 || count > MAX_BLOCK_SIZE) {
+                    throw new IOException("Bad block size " + count + " from " + deviceId);
+                }
+
+                // Timestamps are stored relative to the first event, as the collector service does.
+                Block b = new Block(deviceId, startTimeMillisec, count, floatPrecision);
+                long firstNanosec = 0;
+                for(int i = 0; i < count; i++) {
+                    long t = in.readLong();
+                    if(i == 0) {
+                        firstNanosec = t;
+                    }
+                    if(floatPrecision) {
+                        b.tf[i] = t - firstNanosec;
+                        b.xf[i] = in.readFloat();
+                        b.yf[i] = in.readFloat();
+                        b.zf[i] = in.readFloat();
+                    } else {
+                        b.t[i] = t - firstNanosec;
+                        b.x[i] = in.readFloat();
+                        b.y[i] = in.readFloat();
+                        b.z[i] = in.readFloat();
+                    }
+                }
+                if(stopping) {
+                    return;    // The shards may already have been told to finish
+                }
+                blocksReceived.incrementAndGet();
+                shards[(deviceId.hashCode() & 0x7fffffff) % shardCount].queue.put(b);
+            }
+        } catch(IOException e) {
+            if(!stopping) {
+                LOG.log(Level.WARNING, "Dropping connection: " + e.getMessage());
+            }
+        } catch(InterruptedException e) {
+            // Server is stopping
+        } finally {
+            openConnections.remove(s);
+            closeQuietly(s);
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch(IOException e) {
+            // Nothing more to do with it
+        }
+    }
+
+    private void blockDone() {
+        blocksProcessed.incrementAndGet();
+        synchronized(blocksProcessed) {
+            blocksProcessed.notifyAll();
+        }
+    }
+
+    /**
+     * One uploaded block, as received. Only one set of arrays is allocated, depending on the precision.
+     */
+    private static class Block {
+        final String deviceId;
+        final long startTimeMillisec;
+        final int count;
+        final double[] x, y, z, t;
+        final float[] xf, yf, zf, tf;
+
+        Block(String deviceId, long startTimeMillisec, int count, boolean floatPrecision) {
+            this.deviceId = deviceId;
+            this.startTimeMillisec = startTimeMillisec;
+            this.count = count;
+            if(floatPrecision) {
+                xf = new float[count];
+                yf = new float[count];
+                zf = new float[count];
+                tf = new float[count];
+                x = y = z = t = null;
+            } else {
+                x = new double[count];
+                y = new double[count];
+                z = new double[count];
+                t = new double[count];
+                xf = yf = zf = tf = null;
+            }
+        }
+    }
+
+    /**
+     * Running totals for the hour a device is currently in.
+     */
+    private static class DeviceRollup {
+        long hourStart = -1;
+        int count;
+        double stepReg, strideReg, strideSym, cadence;
+    }
+
+    /**
+     * A single analysis thread and the rollup state of every device routed to it.
+     */
+    private class Shard extends Thread {
+        final BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(queueCapacity);
+        final Map<String, DeviceRollup> rollups = new HashMap<String, DeviceRollup>();
+        final GaitAnalyser analyser = new GaitAnalyser();
+        final FloatGaitAnalyser floatAnalyser = new FloatGaitAnalyser();
+        // Devices can be anywhere, so hours are taken in UTC rather than the server's own time zone.
+        final TimeBuckets buckets = new TimeBuckets(TimeZone.getTimeZone("UTC"));
+
+        Shard(int index) {
+            super("GaitIngestionServer-shard-" + index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    Block b = queue.take();
+                    if(b == POISON) {
+                        flushRollups();
+                        return;
+                    }
+                    try {
+                        process(b);
+                    } catch(RuntimeException e) {
+                        LOG.log(Level.WARNING, "Couldn't analyse block from " + b.deviceId, e);
+                    }
+                    blockDone();
+                }
+            } catch(InterruptedException e) {
+                // Shutting down
+            }
+        }
+
+        private void process(Block b) {
+            GaitParams params;
+            if(b.xf != null) {
+                params = floatAnalyser.analyse(b.startTimeMillisec, b.count, b.xf, b.yf, b.zf, b.tf);
+            } else {
+                params = analyser.analyse(b.startTimeMillisec, b.count, b.x, b.y, b.z, b.t);
+            }
+            if(params == null) {
+                return;
+            }
+            store.storeGaitParams(b.deviceId, params);
+
+            DeviceRollup r = rollups.get(b.deviceId);
+            if(r == null) {
+                r = new DeviceRollup();
+                rollups.put(b.deviceId, r);
+            }
+
+            long hourStart = buckets.startOf(TimeBuckets.HOUR, params.timestamp);
+            if(hourStart < r.hourStart) {
+                // The hour this block belongs to has already been stored, and the open one isn't it.
+                lateBlocks.incrementAndGet();
+                LOG.fine("Late block from " + b.deviceId + " left out of the hourly rollup");
+                return;
+            }
+            if(hourStart > r.hourStart) {
+                // Crossed into a new hour, so the previous one is finished.
+                storeRollup(b.deviceId, r);
+                r.hourStart = hourStart;
+                r.count = 0;
+                r.stepReg = r.strideReg = r.strideSym = r.cadence = 0;
+            }
+            r.count++;
+            r.stepReg += params.stepRegularity;
+            r.strideReg += params.strideRegularity;
+            r.strideSym += params.strideSymmetry;
+            r.cadence += params.cadence;
+        }
+
+        /**
+         * Stores the hour each device is part way through, when the server stops.
+         */
+        private void flushRollups() {
+            for(Map.Entry<String, DeviceRollup> entry : rollups.entrySet()) {
+                storeRollup(entry.getKey(), entry.getValue());
+                entry.getValue().count = 0;
+            }
+        }
+
+        private void storeRollup(String deviceId, DeviceRollup r) {
+            if(r.count > 0) {
+                store.storeHourlyGaitParams(deviceId, new GaitParams(r.hourStart,
+                        r.stepReg / r.count, r.strideReg / r.count, r.strideSym / r.count, r.cadence / r.count));
+            }
+        }
+    }
+}
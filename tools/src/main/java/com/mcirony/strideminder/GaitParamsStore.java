@@ -0,0 +1,22 @@
+package com.mcirony.strideminder;
+
+/**
+ * Somewhere for the ingestion server to put the gait parameters it computes.
+ * Implementations are called from several shard threads at once, but never concurrently for the same device.
+ */
+public interface GaitParamsStore {
+
+    /**
+     * Records the gait parameters for one ten-second block.
+     * @param deviceId The device the block came from
+     * @param params The gait parameters for the block
+     */
+    void storeGaitParams(String deviceId, GaitParams params);
+
+    /**
+     * Records an hourly average, once the device's data has moved past the end of that hour.
+     * @param deviceId The device the averages belong to
+     * @param params The averaged gait parameters. The timestamp is the start of the hour.
+     */
+    void storeHourlyGaitParams(String deviceId, GaitParams params);
+}
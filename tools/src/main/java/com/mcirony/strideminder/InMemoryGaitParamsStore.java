@@ -0,0 +1,69 @@
+package com.mcirony.strideminder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A GaitParamsStore that keeps everything in memory. Used by the load generator and for local experiments.
+ */
+public class InMemoryGaitParamsStore implements GaitParamsStore {
+    private final ConcurrentMap<String, List<GaitParams>> raw = new ConcurrentHashMap<String, List<GaitParams>>();
+    private final ConcurrentMap<String, List<GaitParams>> hourly = new ConcurrentHashMap<String, List<GaitParams>>();
+    private final AtomicLong rawCount = new AtomicLong();
+    private final AtomicLong hourlyCount = new AtomicLong();
+
+    @Override
+    public void storeGaitParams(String deviceId, GaitParams params) {
+        listFor(raw, deviceId).add(params);
+        rawCount.incrementAndGet();
+    }
+
+    @Override
+    public void storeHourlyGaitParams(String deviceId, GaitParams params) {
+        listFor(hourly, deviceId).add(params);
+        hourlyCount.incrementAndGet();
+    }
+
+    /**
+     * @param deviceId The device to look up
+     * @return Every block stored for the device, oldest first.
+     */
+    public List<GaitParams> getGaitParams(String deviceId) {
+        List<GaitParams> l = raw.get(deviceId);
+        return l == null ? Collections.<GaitParams>emptyList() : l;
+    }
+
+    /**
+     * @param deviceId The device to look up
+     * @return Every hourly average stored for the device, oldest first.
+     */
+    public List<GaitParams> getHourlyGaitParams(String deviceId) {
+        List<GaitParams> l = hourly.get(deviceId);
+        return l == null ? Collections.<GaitParams>emptyList() : l;
+    }
+
+    public long getGaitParamsCount() {
+        return rawCount.get();
+    }
+
+    public long getHourlyGaitParamsCount() {
+        return hourlyCount.get();
+    }
+
+    private static List<GaitParams> listFor(ConcurrentMap<String, List<GaitParams>> map, String deviceId) {
+        List<GaitParams> l = map.get(deviceId);
+        if(l == null) {
+            // Only one shard thread ever writes a given device, but readers may look at the list at any time.
+            List<GaitParams> created = Collections.synchronizedList(new ArrayList<GaitParams>());
+            l = map.putIfAbsent(deviceId, created);
+            if(l == null) {
+                l = created;
+            }
+        }
+        return l;
+    }
+}
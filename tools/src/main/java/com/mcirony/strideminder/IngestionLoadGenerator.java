@@ -0,0 +1,135 @@
+package com.mcirony.strideminder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures GaitIngestionServer throughput on this machine as the number of devices and shards grows.
+ * Everything runs on localhost: a server is started for each configuration, a set of uploader threads
+ * send SyntheticGaitGenerator walking blocks for every simulated device, and the time until the last block has been
+ * analysed is reported.
+ *
+ * Usage: IngestionLoadGenerator [blocksPerDevice] [deviceCounts] [shardCounts] [precisions]
+ * where the counts are comma-separated lists, e.g. "IngestionLoadGenerator 30 1,10,100,1000 1,2,4,8 double,float".
+ * By default shard counts double from 1 up to the number of available cores, and only the double path is run.
+ */
+public class IngestionLoadGenerator {
+    static final int SAMPLE_RATE_HZ = 100;
+    static final int BLOCK_SIZE = SAMPLE_RATE_HZ * 10;
+    static final int UPLOADER_THREADS = 32;
+
+    public static void main(String[] args) throws Exception {
+        int blocksPerDevice = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+        int[] deviceCounts = args.length > 1 ? parseList(args[1]) : new int[] {1, 10, 100, 1000};
+        int[] shardCounts = args.length > 2 ? parseList(args[2]) : defaultShardCounts();
+        String[] precisions = args.length > 3 ? args[3].split(",") : new String[] {"double"};
+
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " blocksPerDevice=" + blocksPerDevice);
+        System.out.println("precision\tdevices\tshards\tblocks\twalking\tseconds\tblocks/s\tdevice-hours/s");
+        for(String precision : precisions) {
+            for(int devices : deviceCounts) {
+                for(int shards : shardCounts) {
+                    run(devices, shards, blocksPerDevice, precision.trim().equals("float"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one configuration and prints a line of results.
+     */
+    static void run(final int devices, int shards, final int blocksPerDevice, boolean floatPrecision) throws Exception {
+        InMemoryGaitParamsStore store = new InMemoryGaitParamsStore();
+        GaitIngestionServer server = new GaitIngestionServer(store, shards, 64, UPLOADER_THREADS);
+        server.setFloatPrecision(floatPrecision);
+        server.start(0);
+        final int port = server.getPort();
+
+        long startNanosec = System.nanoTime();
+
+        int uploaders = Math.min(devices, UPLOADER_THREADS);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int u = 0; u < uploaders; u++) {
+            final int first = u;
+            final int stride = uploaders;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for(int d = first; d < devices; d += stride) {
+                            uploadDevice(port, d, blocksPerDevice);
+                        }
+                    } catch(IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "uploader-" + u);
+            t.start();
+            threads.add(t);
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        long totalBlocks = (long) devices * blocksPerDevice;
+        if(!server.awaitProcessed(totalBlocks, 600000)) {
+            System.err.println("Timed out waiting for " + totalBlocks + " blocks; only " + server.getBlocksProcessed() + " processed");
+        }
+        double seconds = (System.nanoTime() - startNanosec) / 1e9;
+        server.stop();
+
+        double blocksPerSecond = totalBlocks / seconds;
+        // 360 ten-second blocks make up an hour of wear.
+        System.out.println((floatPrecision ? "float" : "double") + "\t" + devices + "\t" + shards + "\t" + totalBlocks + "\t" + store.getGaitParamsCount() + "\t"
+                + String.format("%.2f\t%.0f\t%.1f", seconds, blocksPerSecond, blocksPerSecond / 360));
+    }
+
+    /**
+     * Sends a run of consecutive blocks for one simulated device over its own connection.
+     */
+    static void uploadDevice(int port, int device, int blocks) throws IOException {
+        float[] x = new float[BLOCK_SIZE];
+        float[] y = new float[BLOCK_SIZE];
+        float[] z = new float[BLOCK_SIZE];
+        long[] t = new long[BLOCK_SIZE];
+        String deviceId = "device-" + device;
+        long startTimeMillisec = 1380000000000L;
+        SyntheticGaitGenerator generator = new SyntheticGaitGenerator(device, SAMPLE_RATE_HZ, 0.05, 0.1, 0.3, 0.1);
+        generator.setActivity(SyntheticGaitGenerator.WALKING);
+
+        DataOutputStream out = GaitIngestionServer.connect(port);
+        try {
+            for(int b = 0; b < blocks; b++) {
+                generator.fill(BLOCK_SIZE, x, y, z, t);
+                GaitIngestionServer.writeBlock(out, deviceId, startTimeMillisec + b * 10000L, BLOCK_SIZE, x, y, z, t);
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int[] parseList(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static int[] defaultShardCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<Integer>();
+        for(int n = 1; n < cores; n *= 2) {
+            counts.add(n);
+        }
+        counts.add(cores);
+        int[] values = new int[counts.size()];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = counts.get(i);
+        }
+        return values;
+    }
+}